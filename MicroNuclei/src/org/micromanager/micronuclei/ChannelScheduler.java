@@ -0,0 +1,117 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei;
+
+import mmcorej.CMMCore;
+
+/**
+ * Sets configurations of the channel group, skipping the ones that are 
+ * already set
+ * 
+ * Each switch can move filter wheels and shutters.  Which switches are 
+ * skipped depends on where the previous site ended: on its last imaging 
+ * channel, or on the after-zap channel when it had hits.
+ * The scheduler assumes that nobody else changes the channel group while it 
+ * is in use.
+ * 
+ * @author nico
+ */
+public class ChannelScheduler {
+   private final CMMCore core_;
+   private final String group_;
+   private String current_;
+   private int requested_ = 0;
+   private int switches_ = 0;
+   
+   /**
+    * @param core core used to set the configurations
+    * @param group channel group
+    * @throws Exception when the current configuration can not be read
+    */
+   public ChannelScheduler(CMMCore core, String group) throws Exception {
+      this(core, group, core.getCurrentConfig(group));
+   }
+   
+   // tests start from a known configuration and override apply
+   ChannelScheduler(CMMCore core, String group, String current) {
+      core_ = core;
+      group_ = group;
+      current_ = current;
+   }
+   
+   /**
+    * Sets the configuration, unless it is set already
+    * @param config configuration of the channel group
+    * @throws Exception when the core fails to set the configuration
+    */
+   public void set(String config) throws Exception {
+      requested_++;
+      if (config.equals(current_)) {
+         return;
+      }
+      // forget the current configuration until it is set for sure
+      current_ = null;
+      apply(config);
+      current_ = config;
+      switches_++;
+   }
+   
+   void apply(String config) throws Exception {
+      core_.setConfig(group_, config);
+   }
+   
+   /**
+    * Records a configuration that was set by other means, i.e. by a 
+    * hardware sequence
+    * @param config configuration that is set now, or null when unknown
+    */
+   public void setCurrent(String config) {
+      current_ = config;
+   }
+   
+   /**
+    * @return configuration that is set now, or null when unknown
+    */
+   public String getCurrent() {
+      return current_;
+   }
+   
+   /**
+    * @return number of configurations asked for
+    */
+   public int getRequested() {
+      return requested_;
+   }
+   
+   /**
+    * @return number of configurations actually set
+    */
+   public int getSwitches() {
+      return switches_;
+   }
+   
+   /**
+    * @return number of configurations that did not need to be set
+    */
+   public int getSaved() {
+      return requested_ - switches_;
+   }
+   
+}
@@ -22,6 +22,8 @@ package org.micromanager.micronuclei;
 import org.micromanager.micronuclei.gui.ResultsListener;
 import org.micromanager.micronuclei.gui.DragDropUtil;
 import org.micromanager.micronuclei.analysisinterface.AnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.analysisinterface.AnalysisTotals;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.WindowManager;
@@ -29,7 +31,6 @@ import ij.gui.PolygonRoi;
 import ij.gui.Roi;
 import ij.io.Opener;
 import ij.measure.ResultsTable;
-import ij.plugin.ImageCalculator;
 import ij.text.TextPanel;
 import ij.text.TextWindow;
 import java.awt.Color;
@@ -46,6 +47,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.prefs.Preferences;
 import javax.swing.BorderFactory;
@@ -60,11 +62,11 @@ import mmcorej.TaggedImage;
 import net.miginfocom.swing.MigLayout;
 import org.json.JSONException;
 import org.json.JSONObject;
-import org.micromanager.acquisition.MMAcquisition;
 import org.micromanager.api.MMWindow;
 import org.micromanager.api.MultiStagePosition;
 import org.micromanager.api.PositionList;
 import org.micromanager.api.ScriptInterface;
+import org.micromanager.micronuclei.analysisinterface.PixelType;
 import org.micromanager.micronuclei.analysis.MicroNucleiAnalysisModule;
 import org.micromanager.micronuclei.analysisinterface.AnalysisProperty;
 import org.micromanager.micronuclei.analysisinterface.PropertyException;
@@ -95,7 +97,10 @@ public class MicroNucleiForm extends MMFrame {
    private final JComboBox zapChannelComboBox_;
    private String afterZapChannel_;
    private final JComboBox AfterZapChannelComboBox_;
+   private final JComboBox siteOrderComboBox_;
+   private final JCheckBox sequenceChannels_;
    private final JCheckBox doZap_;
+   private final JCheckBox batchZap_;
    private final JCheckBox showMasks_;
    private final JTextField backgroundTextField_;
    private final JTextField flatfieldTextField_;
@@ -109,7 +114,10 @@ public class MicroNucleiForm extends MMFrame {
    private final String SECONDIMAGINGCHANNEL = "SecondImagingChannel";
    private final String ZAPCHANNEL = "ZapChannel";
    private final String AFTERZAPCHANNEL = "AfterZapChannel";
+   private final String SITEORDER = "SiteOrder";
+   private final String SEQUENCECHANNELS = "SequenceChannels";
    private final String DOZAP = "DoZap";
+   private final String BATCHZAP = "BatchZap";
    private final String SHOWMASKS = "ShowMasks";
    private final String BACKGROUNDLOCATION = "BackgroundLocation";
    private final String FLATFIELDLOCATION = "FlatfieldLocation";
@@ -202,6 +210,35 @@ public class MicroNucleiForm extends MMFrame {
          }
       } );
       acqPanel.add(AfterZapChannelComboBox_, "span 2, left, wrap");
+      
+      acqPanel.add(myLabel(arialSmallFont_, "Site order: "));
+      siteOrderComboBox_ = new JComboBox(PositionOrder.Mode.values());
+      try {
+         siteOrderComboBox_.setSelectedItem(PositionOrder.Mode.valueOf(
+                 prefs_.get(SITEORDER, PositionOrder.Mode.AS_LISTED.name())));
+      } catch (IllegalArgumentException iae) {
+         siteOrderComboBox_.setSelectedItem(PositionOrder.Mode.AS_LISTED);
+      }
+      siteOrderComboBox_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+            prefs_.put(SITEORDER, ((PositionOrder.Mode) 
+                    siteOrderComboBox_.getSelectedItem()).name());
+         }
+      } );
+      acqPanel.add(siteOrderComboBox_, "span 2, left, wrap");
+      
+      sequenceChannels_ = new JCheckBox("Sequence imaging channels");
+      sequenceChannels_.setSelected(prefs_.getBoolean(SEQUENCECHANNELS, false));
+      sequenceChannels_.setFont(arialSmallFont_);
+      sequenceChannels_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+              prefs_.putBoolean(SEQUENCECHANNELS, 
+                      sequenceChannels_.isSelected());
+         }
+      });
+      acqPanel.add(sequenceChannels_, "span 3, left, wrap");
       acqPanel.setBorder(makeTitledBorder("Acquisition Settings"));
       
       add(acqPanel, "span 3, center, wrap");
@@ -286,6 +323,17 @@ public class MicroNucleiForm extends MMFrame {
       });
       add (doZap_);
       
+      batchZap_ = new JCheckBox("Zap all ROIs at once");
+      batchZap_.setSelected(prefs_.getBoolean(BATCHZAP, false));
+      batchZap_.setFont(arialSmallFont_);
+      batchZap_.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent ae) {
+              prefs_.putBoolean(BATCHZAP, batchZap_.isSelected());
+         }
+      });
+      add (batchZap_);
+      
       showMasks_  = new JCheckBox("Show Masks");
       showMasks_.setSelected (prefs_.getBoolean(SHOWMASKS, false));
       showMasks_.setFont(arialSmallFont_);
@@ -339,6 +387,7 @@ public class MicroNucleiForm extends MMFrame {
    
    @Override
    public void dispose() {
+      analysisModule_.shutdown();
       super.dispose();
    }
    
@@ -439,6 +488,12 @@ public class MicroNucleiForm extends MMFrame {
                background_ = opener.openImage(backgroundTextField_.getText());
             if (!flatfieldTextField_.getText().equals(""))
                flatfield_ = opener.openImage(flatfieldTextField_.getText());            
+            analysisModule_.setCorrectionImages(background_, flatfield_);
+            // test images come from image windows and can be of any type
+            analysisModule_.setPixelType(testing_ ? null : 
+                    PixelType.fromCamera(gui_.getMMCore().getBytesPerPixel(),
+                    gui_.getMMCore().getNumberOfComponents()));
+            analysisModule_.prepare(analysisSettings(showMasks_.isSelected()));
             if (!testing_) {
                warnAboutMissingCorrections(background_, flatfield_);
                runAnalysisAndZapping(saveTextField_.getText());
@@ -495,14 +550,15 @@ public class MicroNucleiForm extends MMFrame {
          oldOutTable.dispose();
       }
       
-      JSONObject parms = analysisSettings(showMasks_.isSelected());
+      AnalysisTotals totals = new AnalysisTotals();
 
       MMWindow mw = new MMWindow(ip);
       if (!mw.isMMWindow()) {
          TaggedImage tImg = ImageUtils.makeTaggedImage(ip.getProcessor());
          tImg.tags.put("PixelSizeUm", ip.getCalibration().pixelWidth);
-         normalize(tImg, background_, flatfield_);
-         Roi[] zapRois = analysisModule_.analyze(tImg, parms);
+         AnalysisResult result = analysisModule_.analyze(tImg);
+         totals.add(result);
+         Roi[] zapRois = result.getHits();
          for (Roi roi : zapRois) {
             outTable.incrementCounter();
             Rectangle bounds = roi.getBounds();
@@ -526,8 +582,9 @@ public class MicroNucleiForm extends MMFrame {
                if (nrPositions == 1 || mw.getImageMetadata(0, 0, 0, p) != null) {
                   TaggedImage tImg = ImageUtils.makeTaggedImage(ip.getProcessor());
                   tImg.tags.put("PixelSizeUm", ip.getCalibration().pixelWidth);
-                  normalize(tImg, background_, flatfield_);
-                  Roi[] zapRois = analysisModule_.analyze(tImg, parms);
+                  AnalysisResult result = analysisModule_.analyze(tImg);
+                  totals.add(result);
+                  Roi[] zapRois = result.getHits();
                   for (Roi roi : zapRois) {
                      outTable.incrementCounter();
                      Rectangle bounds = roi.getBounds();
@@ -565,8 +622,8 @@ public class MicroNucleiForm extends MMFrame {
          frame.setVisible(true);
       }
       
-      ij.IJ.log("Analyzed " + parms.getString(AnalysisModule.CELLCOUNT) + 
-              " nuclei, found " + parms.getString(AnalysisModule.OBJECTCOUNT) +
+      ij.IJ.log("Analyzed " + totals.getNucleiCount() + " nuclei, found " + 
+              totals.getHitCount() +
                       " nuclei with micronuclei" );
       
       
@@ -587,7 +644,17 @@ public class MicroNucleiForm extends MMFrame {
       BufferedWriter resultsWriter = new BufferedWriter(new FileWriter(resultsFile));
 
       PositionList posList = gui_.getPositionList();
-      MultiStagePosition[] positions = posList.getPositions();
+      // sites are visited well by well, optionally re-ordered to reduce 
+      // stage travel
+      MultiStagePosition[] listed = posList.getPositions();
+      MultiStagePosition[] positions = PositionOrder.order(listed, 
+              (PositionOrder.Mode) siteOrderComboBox_.getSelectedItem());
+      if (positions != listed) {
+         gui_.message("Stage travel: " + 
+                 (int) PositionOrder.getTravel(positions) + 
+                 " micron, as listed: " + 
+                 (int) PositionOrder.getTravel(listed) + " micron");
+      }
       String currentWell = "";
       int nrChannels = 1;
       if (secondImagingChannel_ != null && secondImagingChannel_.length() > 1) {
@@ -608,8 +675,7 @@ public class MicroNucleiForm extends MMFrame {
       // figure out how many sites per there are, we actually get that number 
       // from the last well
       for (MultiStagePosition msp : positions) {
-         String label = msp.getLabel();
-         String well = label.split("-")[0];
+         String well = PositionOrder.getWell(msp);
          if (!currentWell.equals(well)) {
             currentWell = well;
             wellCount++;
@@ -620,96 +686,110 @@ public class MicroNucleiForm extends MMFrame {
       gui_.message("Images per well: " + nrImagesPerWell);
       
       // start cycling through the sites and group everything by well
+      // The acquisition thread only drives the hardware, storing images and
+      // reporting results is done by the pipeline in the background
+      ChannelScheduler channels = new ChannelScheduler(gui_.getMMCore(), 
+              channelGroup);
+      String[] imagingChannels = nrChannels == 2 ? 
+              new String[] {imagingChannel_, secondImagingChannel_} : 
+              new String[] {imagingChannel_};
+      // hardware sequencing of the imaging channels, when possible
+      SequencedCapture capture = null;
+      if (sequenceChannels_.isSelected() && nrChannels == 2) {
+         capture = new SequencedCapture(gui_.getMMCore(), channels, 
+                 channelGroup, imagingChannels);
+         if (capture.getProblem() != null) {
+            gui_.message("Not sequencing channels: " + capture.getProblem());
+            capture = null;
+         }
+      }
+      SitePipeline pipeline = new SitePipeline(gui_, resultsWriter, outTable,
+              outTableName);
       int count = 0;
       int siteCount = 0;
-      JSONObject parms = analysisSettings(showMasks_.isSelected());
       currentWell = "";
-      for (MultiStagePosition msp : positions) {
-         if (stop_.get()) {
-            resultsWriter.close();
-            return;
-         }
-         String label = msp.getLabel();
-         String well = label.split("-")[0];
-         if (!currentWell.equals(well)) {
-            // new well
-            gui_.message("Starting well: " + well);
-            if (!currentWell.equals("")) {
-               recordResults(resultsWriter, currentWell, parms);
+      try {
+         for (MultiStagePosition msp : positions) {
+            if (stop_.get()) {
+               pipeline.stop();
+               resultsWriter.close();
+               return;
             }
-            currentWell = well;
-            siteCount = 0;
-            gui_.openAcquisition(well, saveLocation, 1, nrChannels + 1, 1, nrImagesPerWell, true, true);
-            analysisModule_.reset();
-            // reset cell and object counters
-            parms.put(AnalysisModule.CELLCOUNT, 0);
-            parms.put(AnalysisModule.OBJECTCOUNT, 0);
-         }
-         MultiStagePosition.goToPosition(msp, gui_.getMMCore());
-         gui_.getMMCore().waitForSystem();
-         gui_.message("Site: " + msp.getLabel() + ", x: " + msp.get(0).x + ", y: " + msp.get(0).y) ;
-         gui_.getMMCore().setConfig(channelGroup, imagingChannel_);
-         gui_.getMMCore().snapImage();
-         TaggedImage tImg = gui_.getMMCore().getTaggedImage();
-         gui_.addImageToAcquisition(well, 0, 0, 0, siteCount, tImg);
-         try {
-            MMAcquisition acqObject = gui_.getAcquisition(well);
-            acqObject.setChannelName(0, imagingChannel_);
-         } catch (MMScriptException ex) {
-            // ignore since we do not want to crash our acquisition  
-         }
-         if (nrChannels == 2) {
-            gui_.getMMCore().setConfig(channelGroup, secondImagingChannel_);
-            gui_.getMMCore().snapImage();
-            TaggedImage t2Img = gui_.getMMCore().getTaggedImage();
-            gui_.addImageToAcquisition(well, 0, 1, 0, siteCount, t2Img);
-            MMAcquisition acqObject = gui_.getAcquisition(well);
-            try {
-               acqObject.setChannelColor(1, new Color(0, 0, 255).getRGB());
-               acqObject.setChannelName(1, secondImagingChannel_);
-            } catch (MMScriptException ex) {
-               // ignore since we do not want to crash our acquisition  
+            String label = msp.getLabel();
+            String well = PositionOrder.getWell(msp);
+            if (!currentWell.equals(well)) {
+               // new well
+               currentWell = well;
+               siteCount = 0;
+               pipeline.startWell(well, saveLocation, nrChannels + 1, 
+                       nrImagesPerWell);
             }
-         }
-         gui_.getMMCore().setConfig(channelGroup, zapChannel_);
-         
-         // analyze the second channel if that is the one we took
-         
-         // Analyze and zap
-         normalize(tImg, background_, flatfield_);
-         Roi[] zapRois = analysisModule_.analyze(tImg, parms);
-         if (zapRois != null) {
-            zap(zapRois);
-            for (Roi roi : zapRois) {
-               outTable.incrementCounter();
-               Rectangle bounds = roi.getBounds();
-               int x = bounds.x + (int) (0.5 * bounds.width);
-               int y = bounds.y + (int) (0.5 * bounds.height);
-               outTable.addValue(Terms.X, x);
-               outTable.addValue(Terms.Y, y);
-               outTable.addValue(Terms.POSITION, siteCount);
+            MultiStagePosition.goToPosition(msp, gui_.getMMCore());
+            gui_.getMMCore().waitForSystem();
+            gui_.message("Site: " + msp.getLabel() + ", x: " + msp.get(0).x + ", y: " + msp.get(0).y) ;
+            // the analysis channel goes first, so that it is analyzed while
+            // the second channel is taken.  The stage can only move on once
+            // the hits of this site have been zapped
+            Future<AnalysisResult> analysis = null;
+            if (capture != null) {
+               // the sequence takes the channels in the same order
+               capture.start();
+            }
+            for (int c = 0; c < nrChannels; c++) {
+               TaggedImage tImg;
+               if (capture != null) {
+                  tImg = capture.next();
+               } else {
+                  channels.set(imagingChannels[c]);
+                  gui_.getMMCore().snapImage();
+                  tImg = gui_.getMMCore().getTaggedImage();
+               }
+               if (c == 0) {
+                  // analysis starts right away, on a copy of the tags, since 
+                  // storing the image may add to them
+                  JSONObject tags = new JSONObject(tImg.tags.toString());
+                  analysis = analysisModule_.analyzeAsync(
+                          new TaggedImage(tImg.pix, tags));
+                  pipeline.addImage(0, siteCount, tImg, imagingChannel_, null);
+               } else {
+                  pipeline.addImage(1, siteCount, tImg, secondImagingChannel_, 
+                          new Color(0, 0, 255));
+               }
+            }
+            if (capture != null) {
+               capture.finish();
             }
-            outTable.show(outTableName);
 
-            if (zapRois.length > 0) {
-               String acq2 = msp.getLabel();
-               gui_.message("Imaging zapped cells at site: " + acq2);
+            // a site is only left once its hits have been zapped, so wait
+            // for the analysis here
+            AnalysisResult result = SitePipeline.get(analysis);
+            if (result.getHitCount() > 0) {
+               channels.set(zapChannel_);
+               zap(result.getHits());
+               gui_.message("Imaging zapped cells at site: " + label);
                // take the red image and save it
-               gui_.getMMCore().setConfig(channelGroup, afterZapChannel_);
+               channels.set(afterZapChannel_);
                gui_.getMMCore().snapImage();
                TaggedImage tImg2 = gui_.getMMCore().getTaggedImage();
-               gui_.addImageToAcquisition(well, 0, nrChannels, 0, siteCount, tImg2);
-               MMAcquisition acqObject = gui_.getAcquisition(well);
-               try {
-                  acqObject.setChannelColor(nrChannels, new Color(255, 0, 0).getRGB());
-                  acqObject.setChannelName(nrChannels, "zapped");
-               } catch (Exception ex) {
-                  // ignore since we do not want to crash our acquisition  
-               }
+               pipeline.addImage(nrChannels, siteCount, tImg2, "zapped", 
+                       new Color(255, 0, 0));
             }
+            pipeline.addResult(siteCount, label, analysis);
+            siteCount++;
+            count++;
          }
-         siteCount++;
-         count++;
+         pipeline.finish();
+      } catch (Exception ex) {
+         if (capture != null) {
+            try {
+               capture.stop();
+            } catch (Exception stopEx) {
+               ReportingUtils.logError(stopEx, "Failed to stop sequence");
+            }
+         }
+         pipeline.stop();
+         resultsWriter.close();
+         throw ex;
       }
 
       // add listeners to our ResultsTable that let user click on row and go 
@@ -729,26 +809,14 @@ public class MicroNucleiForm extends MMFrame {
       }
       
       
-      // record the results from the last well:
-      recordResults(resultsWriter, currentWell, parms);
-
       resultsWriter.close();
+      gui_.message("Channel switches: " + channels.getSwitches() + 
+              ", skipped: " + channels.getSaved());
       String msg = "Analyzed " + count + " images, in " + wellCount + " wells.";
       gui_.message(msg);
       ReportingUtils.showMessage(msg);
    }
    
-   private void recordResults(BufferedWriter resultsWriter, String currentWell,
-           final JSONObject parms) throws IOException, MMScriptException {
-      resultsWriter.write(currentWell + "\t" + 
-              parms.optInt(AnalysisModule.CELLCOUNT) + "\t" +
-              parms.optInt(AnalysisModule.OBJECTCOUNT) );
-      resultsWriter.newLine();
-      resultsWriter.flush();
-      gui_.message(currentWell + " " + parms.optInt(AnalysisModule.CELLCOUNT) + 
-              "    " + parms.optInt(AnalysisModule.OBJECTCOUNT) );
-   }
-   
    /**
     * Generates an initialized JSONObject to be used to communicate analysis settings
     * @param showMask - whether or not to show the masks during analysis
@@ -758,8 +826,6 @@ public class MicroNucleiForm extends MMFrame {
    private JSONObject analysisSettings(boolean showMask) throws JSONException {
       JSONObject parms = new JSONObject();
       parms.put(AnalysisModule.SHOWMASKS, showMask);
-      parms.put(AnalysisModule.CELLCOUNT, 0);
-      parms.put(AnalysisModule.OBJECTCOUNT, 0);
       return parms;
    }
 
@@ -782,6 +848,17 @@ public class MicroNucleiForm extends MMFrame {
 
       // send to the galvo device and zap them for real
       pcf.setNrRepetitions(5);
+      if (batchZap_.isSelected()) {
+         // upload all of them once, in an order that keeps the galvo moves
+         // short, and run them as a single sequence
+         gui_.message("Zapping " + rois.length + " ROIs");
+         pcf.setROIs(orderForGalvo(rois));
+         pcf.updateROISettings();
+         pcf.getDevice().waitForDevice();
+         pcf.runRois();
+         pcf.getDevice().waitForDevice();
+         return;
+      }
       for (i = 0; i < rois.length; i++) {
          gui_.message("Zapping " + (i + 1) + " of " + rois.length);
          Roi[] theRois = {rois[i]};
@@ -794,6 +871,27 @@ public class MicroNucleiForm extends MMFrame {
 
    }
    
+   /**
+    * Orders the ROIs nearest neighbor first, starting with the first one
+    * @param rois ROIs to be zapped
+    * @return the same ROIs in a new order
+    */
+   private static Roi[] orderForGalvo(Roi[] rois) {
+      double[] x = new double[rois.length];
+      double[] y = new double[rois.length];
+      for (int i = 0; i < rois.length; i++) {
+         Rectangle bounds = rois[i].getBounds();
+         x[i] = bounds.x + 0.5 * bounds.width;
+         y[i] = bounds.y + 0.5 * bounds.height;
+      }
+      int[] order = PathOrder.nearestNeighbor(x, y, 0);
+      Roi[] ordered = new Roi[rois.length];
+      for (int i = 0; i < order.length; i++) {
+         ordered[i] = rois[order[i]];
+      }
+      return ordered;
+   }
+   
    /**
     * makes border with centered title text
     * @param title
@@ -806,34 +904,6 @@ public class MicroNucleiForm extends MMFrame {
       return myBorder;
    }
   
-   /**
-    * Normalize input image as follows:  (image - background) / flatfield
-    * Flatfield image should have been background subtracted and normalized 
-    * at 1.0 for the average pixels values to stay the same
-    * @param input Image to be normalized
-    * @param background image
-    * @param flatField image with average value of 1.0 representing flatness of field
-    * @return normalized image
-    */
-   public static TaggedImage normalize(TaggedImage input, ImagePlus background,
-           ImagePlus flatField) {
-      ImageCalculator ic = new ImageCalculator();
-      // TODO: deal with image of incompatible size and/or type
-      if (flatField != null) {
-         ImagePlus imp = new ImagePlus("tmp", ImageUtils.makeProcessor(input));
-         if (background != null) {
-            ic.run("Subtract", imp, background);
-         }
-         imp = ic.run("Divide, float, 32", imp, flatField);
-         IJ.run(imp, "16-bit", "");
-         TaggedImage tImg = new TaggedImage(imp.getProcessor().getPixels(), 
-                 input.tags);
-         return tImg;
-      }
-      
-      return input;
-   }
-   
    private static void warnAboutMissingCorrections(ImagePlus background, 
            ImagePlus flatfield) {
       if (background == null) {
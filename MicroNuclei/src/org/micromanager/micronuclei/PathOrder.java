@@ -0,0 +1,83 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.micronuclei;
+
+/**
+ * Orders points to shorten the path visiting all of them
+ * 
+ * Greedy nearest neighbor: start at the given point and always go to the 
+ * closest point not visited yet.  Quadratic in the number of points, which
+ * is fine for the hits of a site and the sites of a well.
+ * 
+ * @author nico
+ */
+public class PathOrder {
+   
+   /**
+    * @param x x coordinates of the points
+    * @param y y coordinates of the points
+    * @param start index of the first point to visit
+    * @return indices of the points in the order they should be visited
+    */
+   public static int[] nearestNeighbor(double[] x, double[] y, int start) {
+      int n = x.length;
+      int[] order = new int[n];
+      if (n == 0) {
+         return order;
+      }
+      boolean[] visited = new boolean[n];
+      int current = start;
+      for (int i = 0; i < n; i++) {
+         order[i] = current;
+         visited[current] = true;
+         int next = -1;
+         double best = Double.MAX_VALUE;
+         for (int j = 0; j < n; j++) {
+            if (!visited[j]) {
+               double dx = x[j] - x[current];
+               double dy = y[j] - y[current];
+               double d = dx * dx + dy * dy;
+               if (d < best) {
+                  best = d;
+                  next = j;
+               }
+            }
+         }
+         current = next;
+      }
+      return order;
+   }
+   
+   /**
+    * @param x x coordinates of the points
+    * @param y y coordinates of the points
+    * @param order order in which the points are visited
+    * @return length of the path
+    */
+   public static double length(double[] x, double[] y, int[] order) {
+      double length = 0.0;
+      for (int i = 1; i < order.length; i++) {
+         double dx = x[order[i]] - x[order[i - 1]];
+         double dy = y[order[i]] - y[order[i - 1]];
+         length += Math.sqrt(dx * dx + dy * dy);
+      }
+      return length;
+   }
+   
+}
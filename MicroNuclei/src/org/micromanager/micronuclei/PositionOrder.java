@@ -0,0 +1,245 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.micronuclei;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.micromanager.api.MultiStagePosition;
+
+/**
+ * Orders the sites of a plate scan to reduce stage travel
+ * 
+ * Sites stay grouped by well (the part of the label before the first "-"),
+ * since results are recorded and images are saved per well.  Wells are
+ * ordered across the plate by the center of their sites, and the sites 
+ * within each well are ordered in the same way.  The sites of a well are 
+ * visited starting from the site closest to where the previous well ended,
+ * for serpentine ordering when that is the site the serpentine ends at.
+ * 
+ * @author nico
+ */
+public class PositionOrder {
+   // sites closer than this (micron) are at the same place
+   private static final double SAME_PLACE = 0.001;
+   
+   public enum Mode {
+      AS_LISTED ("As listed"),
+      SERPENTINE ("Serpentine"),
+      NEAREST_NEIGHBOR ("Nearest neighbor");
+      
+      private final String description_;
+      
+      Mode(String description) {
+         description_ = description;
+      }
+      
+      @Override
+      public String toString() {
+         return description_;
+      }
+   }
+   
+   /**
+    * @param msp site
+    * @return name of the well the site belongs to
+    */
+   public static String getWell(MultiStagePosition msp) {
+      return msp.getLabel().split("-")[0];
+   }
+   
+   /**
+    * @param positions sites as they are in the position list
+    * @param mode how to order them
+    * @return the same sites, grouped by well and ordered.  In AS_LISTED 
+    *         mode the input itself
+    */
+   public static MultiStagePosition[] order(MultiStagePosition[] positions,
+           Mode mode) {
+      if (mode == Mode.AS_LISTED || positions.length == 0) {
+         return positions;
+      }
+      Map<String, List<MultiStagePosition>> wells = 
+              new LinkedHashMap<String, List<MultiStagePosition>>();
+      for (MultiStagePosition msp : positions) {
+         String well = getWell(msp);
+         List<MultiStagePosition> sites = wells.get(well);
+         if (sites == null) {
+            sites = new ArrayList<MultiStagePosition>();
+            wells.put(well, sites);
+         }
+         sites.add(msp);
+      }
+      
+      // order the wells by their centers
+      List<List<MultiStagePosition>> wellList = 
+              new ArrayList<List<MultiStagePosition>>(wells.values());
+      double[] x = new double[wellList.size()];
+      double[] y = new double[wellList.size()];
+      for (int w = 0; w < wellList.size(); w++) {
+         for (MultiStagePosition msp : wellList.get(w)) {
+            x[w] += msp.getX();
+            y[w] += msp.getY();
+         }
+         x[w] /= wellList.get(w).size();
+         y[w] /= wellList.get(w).size();
+      }
+      int[] wellOrder = order(x, y, 0, mode);
+      
+      MultiStagePosition[] ordered = new MultiStagePosition[positions.length];
+      int i = 0;
+      for (int w : wellOrder) {
+         List<MultiStagePosition> sites = wellList.get(w);
+         double[] sx = new double[sites.size()];
+         double[] sy = new double[sites.size()];
+         for (int s = 0; s < sites.size(); s++) {
+            sx[s] = sites.get(s).getX();
+            sy[s] = sites.get(s).getY();
+         }
+         int start = 0;
+         if (i > 0) {
+            start = closest(sx, sy, ordered[i - 1].getX(), 
+                    ordered[i - 1].getY());
+         }
+         int[] siteOrder = order(sx, sy, start, mode);
+         if (mode == Mode.SERPENTINE && 
+                 siteOrder[siteOrder.length - 1] == start) {
+            // closer to where the previous well ended when run backwards
+            reverse(siteOrder);
+         }
+         for (int s : siteOrder) {
+            ordered[i++] = sites.get(s);
+         }
+      }
+      return ordered;
+   }
+   
+   /**
+    * @return summed distance between consecutive sites, to report what 
+    * the ordering saved
+    */
+   public static double getTravel(MultiStagePosition[] positions) {
+      double[] x = new double[positions.length];
+      double[] y = new double[positions.length];
+      int[] order = new int[positions.length];
+      for (int i = 0; i < positions.length; i++) {
+         x[i] = positions[i].getX();
+         y[i] = positions[i].getY();
+         order[i] = i;
+      }
+      return PathOrder.length(x, y, order);
+   }
+   
+   private static int[] order(double[] x, double[] y, int start, Mode mode) {
+      if (mode == Mode.NEAREST_NEIGHBOR) {
+         return PathOrder.nearestNeighbor(x, y, start);
+      }
+      return serpentine(x, y);
+   }
+   
+   /**
+    * Visits rows from top to bottom, alternating left to right and right to
+    * left.  Points are in the same row when their y differs no more than 
+    * half the site pitch, so rows can be unevenly spaced and sites can be 
+    * off by less than half the pitch
+    * @return indices of the points in the order they should be visited
+    */
+   static int[] serpentine(final double[] x, final double[] y) {
+      Integer[] byY = new Integer[x.length];
+      for (int i = 0; i < byY.length; i++) {
+         byY[i] = i;
+      }
+      Arrays.sort(byY, new Comparator<Integer>() {
+         @Override
+         public int compare(Integer a, Integer b) {
+            return Double.compare(y[a], y[b]);
+         }
+      });
+      double tolerance = 0.5 * pitch(x, y);
+      
+      int[] order = new int[x.length];
+      int rowStart = 0;
+      boolean leftToRight = true;
+      while (rowStart < byY.length) {
+         int rowEnd = rowStart + 1;
+         while (rowEnd < byY.length && 
+                 y[byY[rowEnd]] - y[byY[rowEnd - 1]] <= tolerance) {
+            rowEnd++;
+         }
+         final boolean ascending = leftToRight;
+         Arrays.sort(byY, rowStart, rowEnd, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+               return ascending ? Double.compare(x[a], x[b]) : 
+                       Double.compare(x[b], x[a]);
+            }
+         });
+         for (int i = rowStart; i < rowEnd; i++) {
+            order[i] = byY[i];
+         }
+         leftToRight = !leftToRight;
+         rowStart = rowEnd;
+      }
+      return order;
+   }
+   
+   /**
+    * @return smallest distance between two sites that are not at the same 
+    * place, or 0 when there are no such sites
+    */
+   private static double pitch(double[] x, double[] y) {
+      double pitch = Double.MAX_VALUE;
+      for (int i = 0; i < x.length; i++) {
+         for (int j = i + 1; j < x.length; j++) {
+            double d = Math.hypot(x[i] - x[j], y[i] - y[j]);
+            if (d > SAME_PLACE && d < pitch) {
+               pitch = d;
+            }
+         }
+      }
+      return pitch == Double.MAX_VALUE ? 0.0 : pitch;
+   }
+   
+   private static void reverse(int[] order) {
+      for (int i = 0, j = order.length - 1; i < j; i++, j--) {
+         int tmp = order[i];
+         order[i] = order[j];
+         order[j] = tmp;
+      }
+   }
+   
+   private static int closest(double[] x, double[] y, double x0, double y0) {
+      int closest = 0;
+      double best = Double.MAX_VALUE;
+      for (int i = 0; i < x.length; i++) {
+         double dx = x[i] - x0;
+         double dy = y[i] - y0;
+         double d = dx * dx + dy * dy;
+         if (d < best) {
+            best = d;
+            closest = i;
+         }
+      }
+      return closest;
+   }
+   
+}
@@ -0,0 +1,256 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import mmcorej.CMMCore;
+import mmcorej.Configuration;
+import mmcorej.PropertySetting;
+import mmcorej.StrVector;
+import mmcorej.TaggedImage;
+import org.micromanager.utils.MMScriptException;
+
+/**
+ * Takes the imaging channels of a site back-to-back in a single sequence
+ * acquisition, with the properties that differ between the channels 
+ * switched by the hardware between frames
+ * 
+ * Sequencing is only possible when every property that differs between the 
+ * channels is sequenceable.  Labels of state devices are sequenced as 
+ * states.  Properties that are the same for all channels are set once, 
+ * using the configuration of the first channel.
+ * Frames are returned by next() as soon as they arrive in the circular 
+ * buffer, in the order of the channels.
+ * The sequences are loaded once.  Each sequence starts by setting the first
+ * channel and checking that the sequenced properties report its values.
+ * 
+ * @author nico
+ */
+public class SequencedCapture {
+   // how long to wait for a frame, on top of the exposure time
+   private static final long TIMEOUT = 10000;
+   private static final String LABEL = "Label";
+   private static final String STATE = "State";
+   
+   private final CMMCore core_;
+   private final ChannelScheduler scheduler_;
+   private final String[] channels_;
+   private final List<Setting> sequenced_ = new ArrayList<Setting>();
+   private final String problem_;
+   private boolean loaded_ = false;
+   private int popped_;
+   
+   private static class Setting {
+      final String device_;
+      final String property_;
+      final String[] values_;
+      
+      Setting(String device, String property, int nrChannels) {
+         device_ = device;
+         property_ = property;
+         values_ = new String[nrChannels];
+      }
+   }
+   
+   /**
+    * @param core core used to drive the hardware
+    * @param scheduler switches the channel group outside of sequences
+    * @param group channel group
+    * @param channels configurations of the channel group, in the order the
+    *                 frames should be taken
+    * @throws Exception when the configurations can not be read
+    */
+   public SequencedCapture(CMMCore core, ChannelScheduler scheduler, 
+           String group, String[] channels) throws Exception {
+      core_ = core;
+      scheduler_ = scheduler;
+      channels_ = channels;
+      problem_ = findSequences(group);
+   }
+   
+   /**
+    * @return why the channels can not be sequenced, or null when they can
+    */
+   public String getProblem() {
+      return problem_;
+   }
+   
+   private String findSequences(String group) throws Exception {
+      int n = channels_.length;
+      Map<String, Setting> settings = new LinkedHashMap<String, Setting>();
+      for (int c = 0; c < n; c++) {
+         Configuration config = core_.getConfigData(group, channels_[c]);
+         for (long i = 0; i < config.size(); i++) {
+            PropertySetting ps = config.getSetting(i);
+            String device = ps.getDeviceLabel();
+            String property = ps.getPropertyName();
+            String value = ps.getPropertyValue();
+            if (LABEL.equals(property)) {
+               value = Long.toString(core_.getStateFromLabel(device, value));
+               property = STATE;
+            }
+            String key = device + "-" + property;
+            Setting setting = settings.get(key);
+            if (setting == null) {
+               setting = new Setting(device, property, n);
+               settings.put(key, setting);
+            }
+            setting.values_[c] = value;
+         }
+      }
+      for (Setting setting : settings.values()) {
+         String name = setting.device_ + "-" + setting.property_;
+         boolean same = true;
+         for (int c = 0; c < n; c++) {
+            if (setting.values_[c] == null) {
+               return channels_[c] + " does not set " + name;
+            }
+            same &= setting.values_[c].equals(setting.values_[0]);
+         }
+         if (same) {
+            continue;
+         }
+         if (!core_.isPropertySequenceable(setting.device_, 
+                 setting.property_)) {
+            return name + " can not be sequenced";
+         }
+         if (core_.getPropertySequenceMaxLength(setting.device_, 
+                 setting.property_) < n) {
+            return name + " can not sequence " + n + " values";
+         }
+         sequenced_.add(setting);
+      }
+      return null;
+   }
+   
+   /**
+    * Starts the sequence acquisition of the channels
+    * @return order in which next() returns the channels
+    * @throws Exception when the hardware fails to start the sequence, or does
+    * not report the values of the first channel
+    */
+   public int[] start() throws Exception {
+      // the hardware sequences start at the first channel, so set it even 
+      // when the scheduler believes it is set already
+      scheduler_.setCurrent(null);
+      scheduler_.set(channels_[0]);
+      for (Setting setting : sequenced_) {
+         String value = core_.getProperty(setting.device_, setting.property_);
+         if (!sameValue(value, setting.values_[0])) {
+            scheduler_.setCurrent(null);
+            throw new MMScriptException(setting.device_ + "-" + 
+                    setting.property_ + " is " + value + " instead of " + 
+                    setting.values_[0] + " after setting " + channels_[0]);
+         }
+      }
+      if (!loaded_) {
+         for (Setting setting : sequenced_) {
+            StrVector values = new StrVector();
+            for (String value : setting.values_) {
+               values.add(value);
+            }
+            core_.loadPropertySequence(setting.device_, setting.property_, 
+                    values);
+         }
+         loaded_ = true;
+      }
+      scheduler_.setCurrent(null);
+      for (Setting setting : sequenced_) {
+         core_.startPropertySequence(setting.device_, setting.property_);
+      }
+      core_.startSequenceAcquisition(channels_.length, 0, true);
+      popped_ = 0;
+      int[] order = new int[channels_.length];
+      for (int c = 0; c < order.length; c++) {
+         order[c] = c;
+      }
+      return order;
+   }
+   
+   private static boolean sameValue(String value, String expected) {
+      if (value.equals(expected)) {
+         return true;
+      }
+      // devices may format numbers differently than the configuration
+      try {
+         return Double.parseDouble(value) == Double.parseDouble(expected);
+      } catch (NumberFormatException ex) {
+         return false;
+      }
+   }
+   
+   /**
+    * Waits for the next frame of the sequence
+    * @return frame, with the pixel size added to the tags when missing
+    * @throws Exception when the sequence ends or stalls before the frame 
+    * arrives
+    */
+   public TaggedImage next() throws Exception {
+      long timeout = System.currentTimeMillis() + 
+              (long) core_.getExposure() + TIMEOUT;
+      while (core_.getRemainingImageCount() == 0) {
+         if (core_.isBufferOverflowed()) {
+            throw new MMScriptException("Circular buffer overflowed");
+         }
+         if (!core_.isSequenceRunning() && 
+                 core_.getRemainingImageCount() == 0) {
+            throw new MMScriptException("Sequence ended after " + popped_ + 
+                    " of " + channels_.length + " images");
+         }
+         if (System.currentTimeMillis() > timeout) {
+            throw new MMScriptException("Timed out waiting for image " + 
+                    (popped_ + 1) + " of " + channels_.length);
+         }
+         Thread.sleep(1);
+      }
+      TaggedImage img = core_.popNextTaggedImage();
+      if (!img.tags.has("PixelSizeUm")) {
+         img.tags.put("PixelSizeUm", core_.getPixelSizeUm());
+      }
+      popped_++;
+      return img;
+   }
+   
+   /**
+    * Ends the sequence once all frames have been taken
+    * @throws Exception when the hardware fails to stop the sequence
+    */
+   public void finish() throws Exception {
+      stop();
+      scheduler_.setCurrent(channels_[channels_.length - 1]);
+   }
+   
+   /**
+    * Stops the sequence, whether or not all frames were taken
+    * @throws Exception when the hardware fails to stop the sequence
+    */
+   public void stop() throws Exception {
+      if (core_.isSequenceRunning()) {
+         core_.stopSequenceAcquisition();
+      }
+      for (Setting setting : sequenced_) {
+         core_.stopPropertySequence(setting.device_, setting.property_);
+      }
+   }
+   
+}
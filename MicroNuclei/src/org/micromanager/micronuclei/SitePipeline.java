@@ -0,0 +1,290 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.micronuclei;
+
+import ij.gui.Roi;
+import ij.measure.ResultsTable;
+import java.awt.Color;
+import java.awt.Rectangle;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import mmcorej.TaggedImage;
+import org.micromanager.acquisition.MMAcquisition;
+import org.micromanager.api.ScriptInterface;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import org.micromanager.micronuclei.analysisinterface.AnalysisTotals;
+import org.micromanager.utils.MMScriptException;
+
+/**
+ * Takes storing images and reporting results off the acquisition thread
+ * 
+ * The acquisition thread only drives the hardware (stage, channels, zapping)
+ * and hands everything else to this pipeline: opening the acquisition of a 
+ * well, adding images to it, and waiting for analysis results to fill the
+ * results table and the per-well totals.  Steps are carried out in the 
+ * order they were handed in, by a single thread.  The queue is bounded, so
+ * when storage or analysis falls behind, the acquisition thread blocks 
+ * rather than piling up images in memory.
+ * 
+ * @author nico
+ */
+public class SitePipeline {
+   // steps waiting to be carried out, i.e. a few sites worth of images
+   private static final int CAPACITY = 12;
+   
+   private final ScriptInterface gui_;
+   private final BufferedWriter resultsWriter_;
+   private final ResultsTable outTable_;
+   private final String outTableName_;
+   private final BlockingQueue<Step> queue_ = 
+           new ArrayBlockingQueue<Step>(CAPACITY);
+   private final Thread worker_;
+   private volatile Exception error_;
+   // only used by the worker
+   private String well_ = "";
+   private AnalysisTotals wellTotals_ = new AnalysisTotals();
+   
+   private static abstract class Step {
+      abstract void run() throws Exception;
+   }
+   
+   // marks the end of the run
+   private static final Step END = new Step() {
+      @Override
+      void run() {
+      }
+   };
+   
+   /**
+    * @param gui Micro-Manager script interface
+    * @param resultsWriter receives the totals of each well
+    * @param outTable receives the position of each hit
+    * @param outTableName title of the results table window
+    */
+   public SitePipeline(ScriptInterface gui, BufferedWriter resultsWriter,
+           ResultsTable outTable, String outTableName) {
+      gui_ = gui;
+      resultsWriter_ = resultsWriter;
+      outTable_ = outTable;
+      outTableName_ = outTableName;
+      worker_ = new Thread(new Runnable() {
+         @Override
+         public void run() {
+            work();
+         }
+      }, "MicroNuclei storage");
+      worker_.setDaemon(true);
+      worker_.start();
+   }
+   
+   private void work() {
+      try {
+         Step step = queue_.take();
+         while (step != END) {
+            // after an error, keep taking steps so that the acquisition 
+            // thread does not block, it will stop at its next put
+            if (error_ == null) {
+               try {
+                  step.run();
+               } catch (Exception ex) {
+                  error_ = ex;
+               }
+            }
+            step = queue_.take();
+         }
+      } catch (InterruptedException ie) {
+         error_ = ie;
+      }
+   }
+   
+   private void put(Step step) throws MMScriptException {
+      throwError();
+      try {
+         queue_.put(step);
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new MMScriptException("Interrupted while acquiring");
+      }
+   }
+   
+   private void throwError() throws MMScriptException {
+      Exception ex = error_;
+      if (ex instanceof MMScriptException) {
+         throw (MMScriptException) ex;
+      }
+      if (ex != null) {
+         throw new MMScriptException(ex);
+      }
+   }
+   
+   /**
+    * Records the totals of the previous well, and opens the acquisition 
+    * of the new one
+    * @param well name of the well
+    * @param saveLocation directory the acquisition is saved in
+    * @param nrChannels number of channels per site
+    * @param nrImagesPerWell number of sites in the well
+    * @throws MMScriptException when an earlier step failed
+    */
+   public void startWell(final String well, final String saveLocation, 
+           final int nrChannels, final int nrImagesPerWell) 
+           throws MMScriptException {
+      put(new Step() {
+         @Override
+         void run() throws IOException, MMScriptException {
+            gui_.message("Starting well: " + well);
+            recordResults();
+            well_ = well;
+            wellTotals_ = new AnalysisTotals();
+            gui_.openAcquisition(well, saveLocation, 1, nrChannels, 1, 
+                    nrImagesPerWell, true, true);
+         }
+      });
+   }
+   
+   /**
+    * Adds an image to the acquisition of the current well
+    * @param channel channel index
+    * @param site site index within the well
+    * @param img image to be added
+    * @param channelName name of the channel
+    * @param color color of the channel, or null to leave it as it is
+    * @throws MMScriptException when an earlier step failed
+    */
+   public void addImage(final int channel, final int site, 
+           final TaggedImage img, final String channelName, final Color color) 
+           throws MMScriptException {
+      put(new Step() {
+         @Override
+         void run() throws MMScriptException {
+            gui_.addImageToAcquisition(well_, 0, channel, 0, site, img);
+            try {
+               MMAcquisition acqObject = gui_.getAcquisition(well_);
+               if (color != null) {
+                  acqObject.setChannelColor(channel, color.getRGB());
+               }
+               acqObject.setChannelName(channel, channelName);
+            } catch (Exception ex) {
+               // ignore since we do not want to crash our acquisition  
+            }
+         }
+      });
+   }
+   
+   /**
+    * Waits for the analysis of a site and reports its result
+    * @param site site index within the well
+    * @param label label of the site
+    * @param result result of the analysis, possibly still running
+    * @throws MMScriptException when an earlier step failed
+    */
+   public void addResult(final int site, final String label, 
+           final Future<AnalysisResult> result) throws MMScriptException {
+      put(new Step() {
+         @Override
+         void run() throws MMScriptException {
+            AnalysisResult r = get(result);
+            wellTotals_.add(r);
+            if (r.isSkipped()) {
+               gui_.message("Skipped site " + label + ": " + 
+                       r.getSkipReason());
+               return;
+            }
+            for (Roi roi : r.getHits()) {
+               outTable_.incrementCounter();
+               Rectangle bounds = roi.getBounds();
+               int x = bounds.x + (int) (0.5 * bounds.width);
+               int y = bounds.y + (int) (0.5 * bounds.height);
+               outTable_.addValue(Terms.X, x);
+               outTable_.addValue(Terms.Y, y);
+               outTable_.addValue(Terms.POSITION, site);
+            }
+            outTable_.show(outTableName_);
+         }
+      });
+   }
+   
+   /**
+    * Waits until all steps are done and records the totals of the last well
+    * @throws MMScriptException when one of the steps failed
+    */
+   public void finish() throws MMScriptException {
+      put(new Step() {
+         @Override
+         void run() throws IOException, MMScriptException {
+            recordResults();
+         }
+      });
+      stop();
+      throwError();
+   }
+   
+   /**
+    * Waits for the steps handed in so far, but does not record the totals 
+    * of the current well.  Use when the run is stopped
+    */
+   public void stop() {
+      try {
+         queue_.put(END);
+         worker_.join();
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+      }
+   }
+   
+   /**
+    * Waits for an analysis result
+    * @param result future result
+    * @return the result
+    * @throws MMScriptException when the analysis failed or the caller was 
+    *                           interrupted
+    */
+   public static AnalysisResult get(Future<AnalysisResult> result) 
+           throws MMScriptException {
+      try {
+         return result.get();
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         throw new MMScriptException("Interrupted while analyzing");
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof MMScriptException) {
+            throw (MMScriptException) cause;
+         }
+         throw new MMScriptException(cause);
+      }
+   }
+   
+   private void recordResults() throws IOException {
+      if (well_.equals("")) {
+         return;
+      }
+      int nucleiCount = wellTotals_.getNucleiCount();
+      int hitCount = wellTotals_.getHitCount();
+      resultsWriter_.write(well_ + "\t" + nucleiCount + "\t" + hitCount);
+      resultsWriter_.newLine();
+      resultsWriter_.flush();
+      gui_.message(well_ + " " + nucleiCount + "    " + hitCount);
+   }
+   
+}
@@ -0,0 +1,101 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+/**
+ * Binary mask with one bit per pixel, packed in longs
+ * Every row starts at a new word.  Pixel x of a row is bit x % 64 of word 
+ * x / 64 (the least significant bit is the leftmost pixel).  Bits beyond 
+ * the width of the image are always 0, so that whole words can be shifted 
+ * and combined without special cases at the right edge.
+ * 
+ * @author nico
+ */
+public class BitMask {
+   private int width_;
+   private int height_;
+   private int wordsPerRow_;
+   private long[] words_ = new long[0];
+   
+   /**
+    * Sets the size of the mask.  Memory is only allocated when the mask 
+    * grows.  The content is undefined afterwards
+    * @param width image width
+    * @param height image height
+    */
+   public void setSize(int width, int height) {
+      width_ = width;
+      height_ = height;
+      wordsPerRow_ = (width + 63) >>> 6;
+      int size = wordsPerRow_ * height;
+      words_ = BufferPool.longs(words_, size);
+   }
+   
+   public int getWidth() {
+      return width_;
+   }
+   
+   public int getHeight() {
+      return height_;
+   }
+   
+   public int getWordsPerRow() {
+      return wordsPerRow_;
+   }
+   
+   /**
+    * @return the packed rows.  Only the first getWordsPerRow() * getHeight()
+    *         words are valid
+    */
+   public long[] getWords() {
+      return words_;
+   }
+   
+   /**
+    * @return bits that are part of the image in the last word of each row
+    */
+   public long getLastWordMask() {
+      int rest = width_ & 63;
+      return rest == 0 ? -1L : (1L << rest) - 1L;
+   }
+   
+   public boolean get(int x, int y) {
+      return (words_[y * wordsPerRow_ + (x >>> 6)] & (1L << x)) != 0;
+   }
+   
+   /**
+    * Unpacks the mask into an 8-bit mask
+    * @param out receives 255 for set pixels and 0 otherwise
+    */
+   public void toBytes(byte[] out) {
+      for (int y = 0; y < height_; y++) {
+         int row = y * width_;
+         int wordRow = y * wordsPerRow_;
+         for (int x = 0; x < width_; x += 64) {
+            long word = words_[wordRow + (x >>> 6)];
+            int end = Math.min(64, width_ - x);
+            for (int b = 0; b < end; b++) {
+               out[row + x + b] = (word & (1L << b)) != 0 ? (byte) 255 : 0;
+            }
+         }
+      }
+   }
+   
+}
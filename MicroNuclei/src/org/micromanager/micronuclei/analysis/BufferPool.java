@@ -0,0 +1,184 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers owned by an analysis thread, so that analyzing the next image
+ * re-uses the memory of the previous one instead of allocating new images
+ * 
+ * Each thread gets its own pool (use get()).  The engine and labelers keep
+ * their buffers at the size of the largest image seen, and only grow.  
+ * Objects obtained from the pool of a thread may be handed to tasks running
+ * in other threads, but only for the duration of the analysis done by the 
+ * owning thread.
+ * 
+ * All buffer (re-)allocations in the analysis code go through the static 
+ * helpers, which count how often an existing buffer was large enough (hit)
+ * and how often a new one had to be allocated (miss).  The counts are 
+ * totals over all threads, since the buffers used for a single image can
+ * belong to several threads and other images may be analyzed at the same 
+ * time.  In steady state the number of misses should not go up.
+ * 
+ * @author nico
+ */
+public class BufferPool {
+   private static final AtomicLong HITS = new AtomicLong();
+   private static final AtomicLong MISSES = new AtomicLong();
+   private static final ThreadLocal<BufferPool> POOLS = 
+           new ThreadLocal<BufferPool>() {
+      @Override
+      protected BufferPool initialValue() {
+         return new BufferPool();
+      }
+   };
+   
+   private final SegmentationEngine engine_ = new SegmentationEngine();
+   private final ComponentLabeler nucleiLabeler_ = new ComponentLabeler();
+   private final ComponentLabeler microNucleiLabeler_ = new ComponentLabeler();
+   private final FrameStatistics statistics_ = new FrameStatistics();
+   private final ObjectTable nuclei_ = new ObjectTable(256);
+   private final ObjectTable microNuclei_ = new ObjectTable(1024);
+   private final SpatialIndex nucleiIndex_ = new SpatialIndex();
+   
+   private BufferPool() {
+   }
+   
+   /**
+    * @return the pool of the calling thread
+    */
+   public static BufferPool get() {
+      return POOLS.get();
+   }
+   
+   public SegmentationEngine getEngine() {
+      return engine_;
+   }
+   
+   public ComponentLabeler getNucleiLabeler() {
+      return nucleiLabeler_;
+   }
+   
+   public ComponentLabeler getMicroNucleiLabeler() {
+      return microNucleiLabeler_;
+   }
+   
+   /**
+    * @return statistics, cleared
+    */
+   public FrameStatistics getStatistics() {
+      statistics_.clear();
+      return statistics_;
+   }
+   
+   /**
+    * @return table for the nuclei of an image, cleared
+    */
+   public ObjectTable getNuclei() {
+      nuclei_.clear();
+      return nuclei_;
+   }
+   
+   /**
+    * @return table for the micronuclei of an image, cleared
+    */
+   public ObjectTable getMicroNuclei() {
+      microNuclei_.clear();
+      return microNuclei_;
+   }
+   
+   public SpatialIndex getNucleiIndex() {
+      return nucleiIndex_;
+   }
+   
+   /**
+    * @return number of times an existing buffer could be re-used, by all 
+    * threads since the plugin was loaded
+    */
+   public static long getHits() {
+      return HITS.get();
+   }
+   
+   /**
+    * @return number of times a buffer had to be allocated, by all threads 
+    * since the plugin was loaded
+    */
+   public static long getMisses() {
+      return MISSES.get();
+   }
+   
+   /**
+    * @param buffer current buffer, can be null
+    * @param size number of elements needed
+    * @return buffer if it is large enough, otherwise a new array
+    */
+   public static float[] floats(float[] buffer, int size) {
+      if (buffer != null && buffer.length >= size) {
+         HITS.incrementAndGet();
+         return buffer;
+      }
+      MISSES.incrementAndGet();
+      return new float[size];
+   }
+   
+   /**
+    * @param buffer current buffer, can be null
+    * @param size number of elements needed
+    * @return buffer if it is large enough, otherwise a new array
+    */
+   public static byte[] bytes(byte[] buffer, int size) {
+      if (buffer != null && buffer.length >= size) {
+         HITS.incrementAndGet();
+         return buffer;
+      }
+      MISSES.incrementAndGet();
+      return new byte[size];
+   }
+   
+   /**
+    * @param buffer current buffer, can be null
+    * @param size number of elements needed
+    * @return buffer if it is large enough, otherwise a new array
+    */
+   public static int[] ints(int[] buffer, int size) {
+      if (buffer != null && buffer.length >= size) {
+         HITS.incrementAndGet();
+         return buffer;
+      }
+      MISSES.incrementAndGet();
+      return new int[size];
+   }
+   
+   /**
+    * @param buffer current buffer, can be null
+    * @param size number of elements needed
+    * @return buffer if it is large enough, otherwise a new array
+    */
+   public static long[] longs(long[] buffer, int size) {
+      if (buffer != null && buffer.length >= size) {
+         HITS.incrementAndGet();
+         return buffer;
+      }
+      MISSES.incrementAndGet();
+      return new long[size];
+   }
+   
+}
@@ -0,0 +1,329 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+import ij.gui.Wand;
+import ij.process.ByteProcessor;
+import java.util.Arrays;
+
+/**
+ * Finds the 8-connected objects in a binary mask in a single sweep, using
+ * union-find on provisional labels.  Area, bounding box, centroid and 
+ * intensity sum are gathered during the same sweep and objects outside the 
+ * size range are dropped before anything is allocated for them.  Outlines 
+ * (Rois) are only traced on request, i.e. for the objects that are hits.
+ * 
+ * Objects are numbered 0 - getCount() - 1 in raster order of their first 
+ * pixel, which is the order "Analyze Particles..." reports them in.
+ * 
+ * Buffers are kept between calls.  Not thread safe, use one labeler per 
+ * thread.
+ * 
+ * @author nico
+ */
+public class ComponentLabeler {
+   private static final int INITIAL_LABELS = 1024;
+   
+   private int[] labels_;
+   // union-find forest and statistics, indexed by provisional label
+   private int[] parent_ = new int[INITIAL_LABELS];
+   private int[] count_ = new int[INITIAL_LABELS];
+   private int[] minX_ = new int[INITIAL_LABELS];
+   private int[] minY_ = new int[INITIAL_LABELS];
+   private int[] maxX_ = new int[INITIAL_LABELS];
+   private int[] maxY_ = new int[INITIAL_LABELS];
+   private long[] sumX_ = new long[INITIAL_LABELS];
+   private long[] sumY_ = new long[INITIAL_LABELS];
+   private double[] sumI_ = new double[INITIAL_LABELS];
+   private int[] seed_ = new int[INITIAL_LABELS];
+   // provisional label of each object that passed the size filter
+   private int[] objects_ = new int[INITIAL_LABELS];
+   private int nrObjects_;
+   private double pixelArea_;
+   private byte[] mask_;
+   // exact size copy of the mask for the Wand, made when tracing the first
+   // Roi of a mask that is longer than the image (i.e. a pooled buffer)
+   private byte[] traceMask_;
+   private ByteProcessor traceProcessor_;
+   private int width_;
+   private int height_;
+   
+   /**
+    * Labels the mask
+    * @param mask binary mask, foreground is non-zero.  Not modified, but 
+    *             should not change while Rois are being traced
+    * @param intensity image to sum intensities from, or null
+    * @param width image width
+    * @param height image height
+    * @param pixelArea area of a single pixel in calibrated units
+    * @param minSize minimum object area in calibrated units
+    * @param maxSize maximum object area in calibrated units
+    * @return number of objects within the size range
+    */
+   public int label(byte[] mask, float[] intensity, int width, int height,
+           double pixelArea, double minSize, double maxSize) {
+      int size = width * height;
+      labels_ = BufferPool.ints(labels_, size);
+      mask_ = mask;
+      traceProcessor_ = null;
+      width_ = width;
+      height_ = height;
+      pixelArea_ = pixelArea;
+      
+      // label 0 is background
+      int nrLabels = 1;
+      for (int y = 0; y < height; y++) {
+         int row = y * width;
+         for (int x = 0; x < width; x++) {
+            int i = row + x;
+            if (mask[i] == 0) {
+               labels_[i] = 0;
+               continue;
+            }
+            // neighbors that were already visited: W, NW, N, NE
+            int label = 0;
+            if (x > 0) {
+               label = union(label, labels_[i - 1]);
+            }
+            if (y > 0) {
+               int up = i - width;
+               if (x > 0) {
+                  label = union(label, labels_[up - 1]);
+               }
+               label = union(label, labels_[up]);
+               if (x < width - 1) {
+                  label = union(label, labels_[up + 1]);
+               }
+            }
+            if (label == 0) {
+               if (nrLabels == parent_.length) {
+                  grow(2 * nrLabels);
+               }
+               label = nrLabels++;
+               parent_[label] = label;
+               count_[label] = 0;
+               minX_[label] = x;
+               minY_[label] = y;
+               maxX_[label] = x;
+               maxY_[label] = y;
+               sumX_[label] = 0;
+               sumY_[label] = 0;
+               sumI_[label] = 0.0;
+               seed_[label] = i;
+            }
+            labels_[i] = label;
+            count_[label]++;
+            if (x < minX_[label]) {
+               minX_[label] = x;
+            }
+            if (x > maxX_[label]) {
+               maxX_[label] = x;
+            }
+            maxY_[label] = y;
+            sumX_[label] += x;
+            sumY_[label] += y;
+            if (intensity != null) {
+               sumI_[label] += intensity[i];
+            }
+         }
+      }
+      
+      // merge the statistics of each label into its root.  Roots always have
+      // a lower label than their children, so walk from high to low
+      for (int label = nrLabels - 1; label > 0; label--) {
+         int root = find(label);
+         if (root != label) {
+            count_[root] += count_[label];
+            minX_[root] = Math.min(minX_[root], minX_[label]);
+            minY_[root] = Math.min(minY_[root], minY_[label]);
+            maxX_[root] = Math.max(maxX_[root], maxX_[label]);
+            maxY_[root] = Math.max(maxY_[root], maxY_[label]);
+            sumX_[root] += sumX_[label];
+            sumY_[root] += sumY_[label];
+            sumI_[root] += sumI_[label];
+         }
+      }
+      
+      // labels are handed out in raster order, so the root of each object 
+      // is the label of its first pixel, and objects end up in raster order
+      nrObjects_ = 0;
+      for (int label = 1; label < nrLabels; label++) {
+         if (parent_[label] != label) {
+            continue;
+         }
+         double area = count_[label] * pixelArea;
+         if (area >= minSize && area <= maxSize) {
+            objects_[nrObjects_++] = label;
+         }
+      }
+      return nrObjects_;
+   }
+   
+   public int getCount() {
+      return nrObjects_;
+   }
+   
+   /**
+    * @param object index of the object
+    * @return number of pixels in the object
+    */
+   public int getPixelCount(int object) {
+      return count_[objects_[object]];
+   }
+   
+   /**
+    * @param object index of the object
+    * @return area in calibrated units
+    */
+   public double getArea(int object) {
+      return count_[objects_[object]] * pixelArea_;
+   }
+   
+   public int getBoundsX(int object) {
+      return minX_[objects_[object]];
+   }
+   
+   public int getBoundsY(int object) {
+      return minY_[objects_[object]];
+   }
+   
+   public int getBoundsWidth(int object) {
+      int label = objects_[object];
+      return maxX_[label] - minX_[label] + 1;
+   }
+   
+   public int getBoundsHeight(int object) {
+      int label = objects_[object];
+      return maxY_[label] - minY_[label] + 1;
+   }
+   
+   /**
+    * @param object index of the object
+    * @return x of the centroid in pixels, using pixel centers
+    */
+   public double getCentroidX(int object) {
+      int label = objects_[object];
+      return (double) sumX_[label] / count_[label] + 0.5;
+   }
+   
+   /**
+    * @param object index of the object
+    * @return y of the centroid in pixels, using pixel centers
+    */
+   public double getCentroidY(int object) {
+      int label = objects_[object];
+      return (double) sumY_[label] / count_[label] + 0.5;
+   }
+   
+   /**
+    * @param object index of the object
+    * @return sum of the intensities of all pixels of the object, or 0 when
+    *         no intensity image was given
+    */
+   public double getIntensitySum(int object) {
+      return sumI_[objects_[object]];
+   }
+   
+   /**
+    * Traces the outline of the object in the mask that was labeled
+    * @param object index of the object
+    * @return traced polygon Roi, as "Analyze Particles..." would create it
+    */
+   public Roi traceRoi(int object) {
+      int seed = seed_[objects_[object]];
+      Wand wand = new Wand(traceProcessor());
+      int value = mask_[seed] & 0xff;
+      wand.autoOutline(seed % width_, seed / width_, value, value, 
+              Wand.EIGHT_CONNECTED);
+      return new PolygonRoi(wand.xpoints, wand.ypoints, wand.npoints, 
+              Roi.TRACED_ROI);
+   }
+   
+   /**
+    * ImageJ requires the pixel array to be exactly width * height long
+    */
+   private ByteProcessor traceProcessor() {
+      if (traceProcessor_ == null) {
+         int size = width_ * height_;
+         byte[] pixels = mask_;
+         if (mask_.length != size) {
+            if (traceMask_ == null || traceMask_.length != size) {
+               traceMask_ = new byte[size];
+            }
+            System.arraycopy(mask_, 0, traceMask_, 0, size);
+            pixels = traceMask_;
+         }
+         traceProcessor_ = new ByteProcessor(width_, height_, pixels, null);
+      }
+      return traceProcessor_;
+   }
+   
+   /**
+    * Joins the trees of the two labels
+    * @return the root with the lowest label, or the other one if a label 
+    *         is 0 (background)
+    */
+   private int union(int a, int b) {
+      if (b == 0) {
+         return a;
+      }
+      b = find(b);
+      if (a == 0 || a == b) {
+         return b;
+      }
+      if (a < b) {
+         parent_[b] = a;
+         return a;
+      }
+      parent_[a] = b;
+      return b;
+   }
+   
+   private int find(int label) {
+      int root = label;
+      while (parent_[root] != root) {
+         root = parent_[root];
+      }
+      // path compression
+      while (parent_[label] != root) {
+         int next = parent_[label];
+         parent_[label] = root;
+         label = next;
+      }
+      return root;
+   }
+   
+   private void grow(int capacity) {
+      parent_ = Arrays.copyOf(parent_, capacity);
+      count_ = Arrays.copyOf(count_, capacity);
+      minX_ = Arrays.copyOf(minX_, capacity);
+      minY_ = Arrays.copyOf(minY_, capacity);
+      maxX_ = Arrays.copyOf(maxX_, capacity);
+      maxY_ = Arrays.copyOf(maxY_, capacity);
+      sumX_ = Arrays.copyOf(sumX_, capacity);
+      sumY_ = Arrays.copyOf(sumY_, capacity);
+      sumI_ = Arrays.copyOf(sumI_, capacity);
+      seed_ = Arrays.copyOf(seed_, capacity);
+      objects_ = Arrays.copyOf(objects_, capacity);
+   }
+   
+}
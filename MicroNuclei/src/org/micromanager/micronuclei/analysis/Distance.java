@@ -49,7 +49,9 @@ public class Distance {
     * @param p Search point, i.e. we are looking for the point closes to this one
     * @param l Map with points in which we are looking for the closest one
     * @return Point that is closest by
+    * @deprecated use SpatialIndex.nearest, which only looks at points nearby
     */
+   @Deprecated
    public static Point2D.Double closest(Point2D.Double p, 
            Map<Point2D.Double, ArrayList<Point2D.Double> > l) {
       if (l.isEmpty()) {
@@ -0,0 +1,174 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+/**
+ * 3x3 filters working directly on pixel arrays
+ * Behave like the ImageJ "Sharpen" and "Smooth" commands: edge pixels are
+ * handled by replicating the nearest pixel inside the image
+ *
+ * @author nico
+ */
+public class Filters {
+
+   /**
+    * Copies camera pixels (byte[], short[] or float[]) into a float array
+    * @param pixels input pixels
+    * @param out destination, should be at least as long as the input
+    * @return maximum value the input pixel type can hold
+    */
+   public static float toFloat(Object pixels, float[] out) {
+      if (pixels instanceof byte[]) {
+         byte[] p = (byte[]) pixels;
+         for (int i = 0; i < p.length; i++) {
+            out[i] = p[i] & 0xff;
+         }
+         return 255f;
+      }
+      if (pixels instanceof short[]) {
+         short[] p = (short[]) pixels;
+         for (int i = 0; i < p.length; i++) {
+            out[i] = p[i] & 0xffff;
+         }
+         return 65535f;
+      }
+      if (pixels instanceof float[]) {
+         float[] p = (float[]) pixels;
+         System.arraycopy(p, 0, out, 0, p.length);
+         return Float.MAX_VALUE;
+      }
+      throw new IllegalArgumentException("Unsupported pixel type");
+   }
+
+   /**
+    * Sharpens using the ImageJ kernel (-1 -1 -1, -1 12 -1, -1 -1 -1) / 4
+    * @param in input pixels
+    * @param out output pixels, must not be the same array as in
+    * @param width image width
+    * @param height image height
+    * @param maxValue when larger than 0, output is rounded and clamped to
+    *                 0 - maxValue, as is the case for integer images
+    */
+   public static void sharpen(float[] in, float[] out, int width, int height,
+           float maxValue) {
+      if (maxValue > 0) {
+         sharpen(in, out, width, height, 0f, maxValue, true);
+      } else {
+         sharpen(in, out, width, height, -Float.MAX_VALUE, Float.MAX_VALUE,
+                 false);
+      }
+   }
+
+   /**
+    * Sharpens float images, clamping the output to the range of the input.
+    * Gives the same result as scaling min - max to 0 - 65535, sharpening 
+    * the 16-bit image and scaling back, except for the rounding
+    * @param in input pixels
+    * @param out output pixels, must not be the same array as in
+    * @param width image width
+    * @param height image height
+    * @param min lowest output value
+    * @param max highest output value
+    */
+   public static void sharpen(float[] in, float[] out, int width, int height,
+           float min, float max) {
+      sharpen(in, out, width, height, min, max, false);
+   }
+
+   private static void sharpen(float[] in, float[] out, int width, 
+           int height, float min, float max, boolean round) {
+      for (int y = 0; y < height; y++) {
+         int yUp = y > 0 ? y - 1 : 0;
+         int yDown = y < height - 1 ? y + 1 : height - 1;
+         int r0 = yUp * width;
+         int r1 = y * width;
+         int r2 = yDown * width;
+         for (int x = 0; x < width; x++) {
+            int xl = x > 0 ? x - 1 : 0;
+            int xr = x < width - 1 ? x + 1 : width - 1;
+            float neighbors = in[r0 + xl] + in[r0 + x] + in[r0 + xr]
+                    + in[r1 + xl] + in[r1 + xr]
+                    + in[r2 + xl] + in[r2 + x] + in[r2 + xr];
+            float v = (12f * in[r1 + x] - neighbors) * 0.25f;
+            if (round) {
+               v = clamp(v, max);
+            } else if (v < min) {
+               v = min;
+            } else if (v > max) {
+               v = max;
+            }
+            out[r1 + x] = v;
+         }
+      }
+   }
+
+   /**
+    * Replaces each pixel by the average of its 3x3 neighborhood
+    * @param in input pixels
+    * @param out output pixels, must not be the same array as in
+    * @param width image width
+    * @param height image height
+    * @param maxValue when larger than 0, output is rounded and clamped to
+    *                 0 - maxValue, as is the case for integer images
+    */
+   public static void smooth(float[] in, float[] out, int width, int height,
+           float maxValue) {
+      final float ninth = 1f / 9f;
+      for (int y = 0; y < height; y++) {
+         int yUp = y > 0 ? y - 1 : 0;
+         int yDown = y < height - 1 ? y + 1 : height - 1;
+         int r0 = yUp * width;
+         int r1 = y * width;
+         int r2 = yDown * width;
+         for (int x = 0; x < width; x++) {
+            int xl = x > 0 ? x - 1 : 0;
+            int xr = x < width - 1 ? x + 1 : width - 1;
+            float sum = in[r0 + xl] + in[r0 + x] + in[r0 + xr]
+                    + in[r1 + xl] + in[r1 + x] + in[r1 + xr]
+                    + in[r2 + xl] + in[r2 + x] + in[r2 + xr];
+            float v = sum * ninth;
+            out[r1 + x] = maxValue > 0 ? clamp(v, maxValue) : v;
+         }
+      }
+   }
+
+   /**
+    * Rounds and clamps all values in the array to 0 - maxValue
+    * @param pixels array to be modified in place
+    * @param length number of pixels to process
+    * @param maxValue upper bound
+    */
+   public static void clamp(float[] pixels, int length, float maxValue) {
+      for (int i = 0; i < length; i++) {
+         pixels[i] = clamp(pixels[i], maxValue);
+      }
+   }
+
+   private static float clamp(float v, float maxValue) {
+      if (v <= 0f) {
+         return 0f;
+      }
+      if (v >= maxValue) {
+         return maxValue;
+      }
+      return (float) Math.floor(v + 0.5f);
+   }
+
+}
@@ -0,0 +1,307 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+/**
+ * Background and flatfield correction: (image - background) / flatfield
+ * 
+ * The background and the reciprocal of the flatfield are converted to float 
+ * arrays once, when the correction is created.  Correcting an image is then
+ * a single pass over its pixels doing a subtract, a multiply and a clamp.
+ * The flatfield image should have been background subtracted.  It is 
+ * scaled to an average of 1.0, so that the average pixel values stay the 
+ * same, and a raw (i.e. 16-bit) flatfield can be used as is.
+ * 
+ * Correction is fused with the conversion to float that is needed for the
+ * analysis anyway, and with gathering the frame statistics.
+ * 
+ * Immutable after construction, so it can be shared between threads.
+ * 
+ * @author nico
+ */
+public class FlatFieldCorrection {
+   // loads images without changing them
+   public static final FlatFieldCorrection NONE = 
+           new FlatFieldCorrection(null, null);
+   
+   private final float[] background_;
+   private final float[] reciprocalFlatField_;
+   private final int width_;
+   private final int height_;
+   
+   /**
+    * @param background background image, or null
+    * @param flatField flatfield image, or null
+    * @throws IllegalArgumentException when the two images differ in size
+    */
+   public FlatFieldCorrection(ImagePlus background, ImagePlus flatField) {
+      ImageProcessor bp = background == null ? null : background.getProcessor();
+      ImageProcessor fp = flatField == null ? null : flatField.getProcessor();
+      if (bp != null && fp != null && (bp.getWidth() != fp.getWidth() || 
+              bp.getHeight() != fp.getHeight())) {
+         throw new IllegalArgumentException(
+                 "Background and flatfield images differ in size");
+      }
+      ImageProcessor ref = bp != null ? bp : fp;
+      width_ = ref == null ? 0 : ref.getWidth();
+      height_ = ref == null ? 0 : ref.getHeight();
+      if (bp != null) {
+         background_ = new float[width_ * height_];
+         Filters.toFloat(bp.getPixels(), background_);
+      } else {
+         background_ = null;
+      }
+      if (fp != null) {
+         reciprocalFlatField_ = new float[width_ * height_];
+         Filters.toFloat(fp.getPixels(), reciprocalFlatField_);
+         // average of the pixels that can be corrected
+         double sum = 0.0;
+         int n = 0;
+         for (float f : reciprocalFlatField_) {
+            if (f > 0f) {
+               sum += f;
+               n++;
+            }
+         }
+         float mean = n > 0 ? (float) (sum / n) : 1f;
+         for (int i = 0; i < reciprocalFlatField_.length; i++) {
+            float f = reciprocalFlatField_[i];
+            reciprocalFlatField_[i] = f > 0f ? mean / f : 0f;
+         }
+      } else {
+         reciprocalFlatField_ = null;
+      }
+   }
+   
+   /**
+    * @return true when there is nothing to correct
+    */
+   public boolean isEmpty() {
+      return background_ == null && reciprocalFlatField_ == null;
+   }
+   
+   /**
+    * @param width image width
+    * @param height image height
+    * @return true when images of this size can be corrected
+    */
+   public boolean fits(int width, int height) {
+      return width == width_ && height == height_;
+   }
+   
+   /**
+    * Corrects the pixels seen through the view and converts them to float, 
+    * in the same pass the statistics of the corrected pixels are gathered.  
+    * Integer images are rounded and clamped as if the corrected image had 
+    * been stored in the original pixel type.  Each pixel type has its own 
+    * loop, chosen by the type of the view
+    * @param view image, or region of the image, to be loaded
+    * @param out receives width * height corrected pixels of the view, can be
+    *            null when only the statistics are needed
+    * @param stats statistics to add the view to, can be null
+    */
+   public void load(PixelView view, float[] out, FrameStatistics stats) {
+      Object pixels = view.getPixels();
+      int stride = view.getStride();
+      int x0 = view.getX0();
+      int y0 = view.getY0();
+      int w = view.getWidth();
+      int h = view.getHeight();
+      switch (view.getPixelType()) {
+         case GRAY8:
+            loadGray8((byte[]) pixels, stride, x0, y0, w, h, out, stats);
+            break;
+         case GRAY16:
+            loadGray16((short[]) pixels, stride, x0, y0, w, h, out, stats);
+            break;
+         default:
+            loadGray32((float[]) pixels, stride, x0, y0, w, h, out, stats);
+      }
+   }
+   
+   /**
+    * Corrects a single pixel of the view, exactly like load does
+    * @param view image, or region of the image
+    * @param x x of the pixel in the view
+    * @param y y of the pixel in the view
+    * @return corrected pixel value
+    */
+   public float get(PixelView view, int x, int y) {
+      int i = (view.getY0() + y) * view.getStride() + view.getX0() + x;
+      boolean correct = !isEmpty();
+      switch (view.getPixelType()) {
+         case GRAY8:
+            int v8 = ((byte[]) view.getPixels())[i] & 0xff;
+            return correct ? correct(v8, i, 255) : v8;
+         case GRAY16:
+            int v16 = ((short[]) view.getPixels())[i] & 0xffff;
+            return correct ? correct(v16, i, 65535) : v16;
+         default:
+            float v = ((float[]) view.getPixels())[i];
+            return correct ? correct(v, i) : v;
+      }
+   }
+   
+   // the integer kernels index the histogram and sum with the integer 
+   // pixel value itself
+   
+   private void loadGray8(byte[] pixels, int stride, int x0, int y0, int w, 
+           int h, float[] out, FrameStatistics stats) {
+      boolean correct = !isEmpty();
+      int[] histogram = stats == null ? null : stats.getHistogram();
+      long sum = 0;
+      long sumSq = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int y = 0; y < h; y++) {
+         int in = (y0 + y) * stride + x0;
+         int o = y * w;
+         for (int x = 0; x < w; x++) {
+            int i = in + x;
+            int v = pixels[i] & 0xff;
+            if (correct) {
+               v = correct(v, i, 255);
+            }
+            if (out != null) {
+               out[o + x] = v;
+            }
+            if (histogram != null) {
+               histogram[v]++;
+               sum += v;
+               sumSq += v * v;
+               if (v < min) {
+                  min = v;
+               }
+               if (v > max) {
+                  max = v;
+               }
+            }
+         }
+      }
+      if (stats != null) {
+         stats.add((long) w * h, sum, sumSq, min, max);
+      }
+   }
+   
+   private void loadGray16(short[] pixels, int stride, int x0, int y0, int w, 
+           int h, float[] out, FrameStatistics stats) {
+      boolean correct = !isEmpty();
+      int[] histogram = stats == null ? null : stats.getHistogram();
+      long sum = 0;
+      long sumSq = 0;
+      int min = Integer.MAX_VALUE;
+      int max = Integer.MIN_VALUE;
+      for (int y = 0; y < h; y++) {
+         int in = (y0 + y) * stride + x0;
+         int o = y * w;
+         for (int x = 0; x < w; x++) {
+            int i = in + x;
+            int v = pixels[i] & 0xffff;
+            if (correct) {
+               v = correct(v, i, 65535);
+            }
+            if (out != null) {
+               out[o + x] = v;
+            }
+            if (histogram != null) {
+               histogram[v]++;
+               sum += v;
+               sumSq += (long) v * v;
+               if (v < min) {
+                  min = v;
+               }
+               if (v > max) {
+                  max = v;
+               }
+            }
+         }
+      }
+      if (stats != null) {
+         stats.add((long) w * h, sum, sumSq, min, max);
+      }
+   }
+   
+   private void loadGray32(float[] pixels, int stride, int x0, int y0, int w, 
+           int h, float[] out, FrameStatistics stats) {
+      boolean correct = !isEmpty();
+      int[] histogram = stats == null ? null : stats.getHistogram();
+      double sum = 0.0;
+      double sumSq = 0.0;
+      float min = Float.MAX_VALUE;
+      float max = -Float.MAX_VALUE;
+      for (int y = 0; y < h; y++) {
+         int in = (y0 + y) * stride + x0;
+         int o = y * w;
+         for (int x = 0; x < w; x++) {
+            int i = in + x;
+            float v = pixels[i];
+            if (correct) {
+               v = correct(v, i);
+            }
+            if (out != null) {
+               out[o + x] = v;
+            }
+            if (histogram != null) {
+               histogram[FrameStatistics.bin(v)]++;
+               sum += v;
+               sumSq += (double) v * v;
+               if (v < min) {
+                  min = v;
+               }
+               if (v > max) {
+                  max = v;
+               }
+            }
+         }
+      }
+      if (stats != null) {
+         stats.add((long) w * h, sum, sumSq, min, max);
+      }
+   }
+   
+   /**
+    * Corrects an integer pixel, rounded and clamped to 0 - maxValue
+    */
+   private int correct(int v, int i, int maxValue) {
+      float c = correct((float) v, i);
+      return c >= maxValue ? maxValue : (int) (c + 0.5f);
+   }
+   
+   /**
+    * Subtract (clamped at zero, like ImageJ does for integer images) and 
+    * multiply with the reciprocal of the flatfield
+    */
+   private float correct(float v, int i) {
+      if (background_ != null) {
+         v -= background_[i];
+         if (v < 0f) {
+            v = 0f;
+         }
+      }
+      if (reciprocalFlatField_ != null) {
+         v *= reciprocalFlatField_[i];
+      }
+      return v;
+   }
+   
+}
@@ -0,0 +1,127 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Statistics of a whole frame: 16-bit histogram, mean, standard deviation
+ * and range.  Filled while the frame is corrected and loaded for analysis
+ * (see FlatFieldCorrection), so that no separate pass over the image is 
+ * needed.  Values are rounded and clamped to 0 - 65535 for the histogram.
+ * 
+ * Statistics of several regions (i.e. tiles) can be accumulated.  
+ * Not thread safe.
+ * 
+ * @author nico
+ */
+public class FrameStatistics {
+   public static final int NBINS = 65536;
+   
+   private final int[] histogram_ = new int[NBINS];
+   private long count_;
+   private double sum_;
+   private double sumSq_;
+   private float min_;
+   private float max_;
+   
+   public FrameStatistics() {
+      clear();
+   }
+   
+   public final void clear() {
+      Arrays.fill(histogram_, 0);
+      count_ = 0;
+      sum_ = 0.0;
+      sumSq_ = 0.0;
+      min_ = Float.MAX_VALUE;
+      max_ = -Float.MAX_VALUE;
+   }
+   
+   /**
+    * Histogram to be incremented directly by the pixel loops
+    * @return histogram with one bin per 16-bit value
+    */
+   int[] getHistogram() {
+      return histogram_;
+   }
+   
+   /**
+    * Adds the moments of a region, gathered by the caller
+    */
+   void add(long count, double sum, double sumSq, float min, float max) {
+      count_ += count;
+      sum_ += sum;
+      sumSq_ += sumSq;
+      min_ = Math.min(min_, min);
+      max_ = Math.max(max_, max);
+   }
+   
+   static int bin(float v) {
+      if (v <= 0f) {
+         return 0;
+      }
+      return v >= 65535f ? 65535 : (int) (v + 0.5f);
+   }
+   
+   public long getCount() {
+      return count_;
+   }
+   
+   public double getMean() {
+      return count_ > 0 ? sum_ / count_ : 0.0;
+   }
+   
+   /**
+    * @return sample standard deviation, as ImageJ reports it
+    */
+   public double getStdDev() {
+      if (count_ < 2) {
+         return 0.0;
+      }
+      double var = (sumSq_ - sum_ * sum_ / count_) / (count_ - 1);
+      return Math.sqrt(Math.max(0.0, var));
+   }
+   
+   public float getMin() {
+      return min_;
+   }
+   
+   public float getMax() {
+      return max_;
+   }
+   
+   /**
+    * @param fraction between 0 and 1, i.e. 0.5 for the median
+    * @return value below which the given fraction of the pixels lies
+    */
+   public int getPercentile(double fraction) {
+      long target = (long) (fraction * count_);
+      long count = 0;
+      for (int i = 0; i < NBINS; i++) {
+         count += histogram_[i];
+         if (count > target) {
+            return i;
+         }
+      }
+      return NBINS - 1;
+   }
+   
+}
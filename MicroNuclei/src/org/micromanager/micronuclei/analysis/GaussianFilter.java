@@ -0,0 +1,281 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Recursive (IIR) Gaussian blur after van Vliet, Young and Verbeek, 
+ * "Recursive Gaussian derivative filters", ICPR (1998): the poles found for 
+ * sigma = 2 are scaled so that the filter has exactly the requested 
+ * variance.  The older formulas of Young and van Vliet (1995) gave a 
+ * response that was about 10% too wide at sigma = 5.
+ * 
+ * Each direction is filtered with a third order causal pass followed by a 
+ * third order anti-causal pass, so the cost per pixel does not depend on 
+ * sigma.  Pixels outside the image are taken to be equal to the nearest 
+ * edge pixel, as in ImageJ's Gaussian Blur.  Works in place, rows and 
+ * columns are divided over the threads of the analysis pool.
+ * 
+ * Immutable, so one filter can be shared by several engines.
+ * 
+ * @author nico
+ */
+public class GaussianFilter {
+   // below this sigma the recursive approximation is no longer accurate
+   public static final double MIN_SIGMA = 0.5;
+   
+   // poles of the third order filter for sigma = 2
+   private static final double POLE_RE = 1.40098;
+   private static final double POLE_IM = 1.00236;
+   private static final double POLE_REAL = 1.85132;
+   
+   private final double sigma_;
+   private final double b_;
+   private final double b1_;
+   private final double b2_;
+   private final double b3_;
+   // start values of the anti-causal pass, see blurRow
+   private final double[] m_;
+   
+   /**
+    * @param sigma standard deviation in pixels, at least MIN_SIGMA
+    */
+   public GaussianFilter(double sigma) {
+      if (sigma < MIN_SIGMA) {
+         throw new IllegalArgumentException("Sigma should be at least " + 
+                 MIN_SIGMA);
+      }
+      sigma_ = sigma;
+      // scale the poles so that the variance of both passes is sigma^2
+      double lo = 0.0;
+      double hi = sigma;
+      for (int i = 0; i < 60; i++) {
+         double q = 0.5 * (lo + hi);
+         if (variance(q) < sigma * sigma) {
+            lo = q;
+         } else {
+            hi = q;
+         }
+      }
+      double q = 0.5 * (lo + hi);
+      // the recursion uses the reciprocals r of the scaled poles
+      double rMod = Math.pow(POLE_RE * POLE_RE + POLE_IM * POLE_IM, -0.5 / q);
+      double rRe = rMod * Math.cos(Math.atan2(POLE_IM, POLE_RE) / q);
+      double r3 = Math.pow(POLE_REAL, -1.0 / q);
+      b1_ = 2.0 * rRe + r3;
+      b2_ = -(rMod * rMod + 2.0 * rRe * r3);
+      b3_ = rMod * rMod * r3;
+      b_ = 1.0 - (b1_ + b2_ + b3_);
+      m_ = boundaryMatrix((int) (20 * sigma) + 50);
+   }
+   
+   /**
+    * Variance of the causal plus anti-causal filter with the poles raised 
+    * to the power 1/q: the sum of 2 d / (d - 1)^2 over the poles d
+    */
+   private static double variance(double q) {
+      double mod = Math.pow(POLE_RE * POLE_RE + POLE_IM * POLE_IM, 0.5 / q);
+      double arg = Math.atan2(POLE_IM, POLE_RE) / q;
+      double dRe = mod * Math.cos(arg);
+      double dIm = mod * Math.sin(arg);
+      // (d - 1)^2
+      double sRe = (dRe - 1.0) * (dRe - 1.0) - dIm * dIm;
+      double sIm = 2.0 * (dRe - 1.0) * dIm;
+      // the complex pair adds up to twice the real part
+      double pair = 4.0 * (dRe * sRe + dIm * sIm) / (sRe * sRe + sIm * sIm);
+      double d3 = Math.pow(POLE_REAL, 1.0 / q);
+      return pair + 2.0 * d3 / ((d3 - 1.0) * (d3 - 1.0));
+   }
+   
+   /**
+    * Triggs and Sdika, "Boundary conditions for Young-van Vliet recursive 
+    * filtering", IEEE Trans. Signal Processing 54 (2006): beyond the edge 
+    * the anti-causal pass starts from a linear function of the last three 
+    * causal outputs.  Rather than using the closed form, the 3x3 matrix is 
+    * found by running both passes on a unit deviation past the edge.
+    * @param n number of samples past the edge, long enough to decay
+    * @return matrix in row major order, rows are the anti-causal outputs 
+    * one, two and three pixels past the edge, columns the causal outputs 
+    * at the edge pixel and the two before it
+    */
+   private double[] boundaryMatrix(int n) {
+      double[] m = new double[9];
+      double[] c = new double[n];
+      for (int j = 0; j < 3; j++) {
+         double w1 = j == 0 ? 1.0 : 0.0;
+         double w2 = j == 1 ? 1.0 : 0.0;
+         double w3 = j == 2 ? 1.0 : 0.0;
+         for (int k = 0; k < n; k++) {
+            double w = b1_ * w1 + b2_ * w2 + b3_ * w3;
+            c[k] = w;
+            w3 = w2;
+            w2 = w1;
+            w1 = w;
+         }
+         w1 = w2 = w3 = 0.0;
+         for (int k = n - 1; k >= 0; k--) {
+            double w = b_ * c[k] + b1_ * w1 + b2_ * w2 + b3_ * w3;
+            c[k] = w;
+            w3 = w2;
+            w2 = w1;
+            w1 = w;
+         }
+         m[j] = c[0];
+         m[3 + j] = c[1];
+         m[6 + j] = c[2];
+      }
+      return m;
+   }
+   
+   public double getSigma() {
+      return sigma_;
+   }
+   
+   /**
+    * Blurs the image in place
+    * @param pixels image to be blurred
+    * @param width image width
+    * @param height image height
+    */
+   public void blur(final float[] pixels, final int width, final int height) {
+      int nrTasks = Math.min(Parallel.getNumberOfThreads(), height);
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>(nrTasks);
+      for (int t = 0; t < nrTasks; t++) {
+         final int y0 = t * height / nrTasks;
+         final int y1 = (t + 1) * height / nrTasks;
+         tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+               for (int y = y0; y < y1; y++) {
+                  blurRow(pixels, y * width, width);
+               }
+               return null;
+            }
+         });
+      }
+      Parallel.invokeAll(tasks);
+      
+      nrTasks = Math.min(Parallel.getNumberOfThreads(), width);
+      tasks.clear();
+      for (int t = 0; t < nrTasks; t++) {
+         final int x0 = t * width / nrTasks;
+         final int x1 = (t + 1) * width / nrTasks;
+         tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() {
+               blurColumns(pixels, width, height, x0, x1);
+               return null;
+            }
+         });
+      }
+      Parallel.invokeAll(tasks);
+   }
+   
+   private void blurRow(float[] p, int start, int length) {
+      int end = start + length - 1;
+      double edge = p[end];
+      // with edge replication the first output of the causal pass equals 
+      // its input
+      double w1 = p[start];
+      double w2 = w1;
+      double w3 = w1;
+      for (int i = start; i <= end; i++) {
+         double w = b_ * p[i] + b1_ * w1 + b2_ * w2 + b3_ * w3;
+         p[i] = (float) w;
+         w3 = w2;
+         w2 = w1;
+         w1 = w;
+      }
+      // the causal output has not settled at the end, so the anti-causal 
+      // pass starts from the values past the edge given by m_
+      double d0 = p[end] - edge;
+      double d1 = p[Math.max(end - 1, start)] - edge;
+      double d2 = p[Math.max(end - 2, start)] - edge;
+      w1 = edge + m_[0] * d0 + m_[1] * d1 + m_[2] * d2;
+      w2 = edge + m_[3] * d0 + m_[4] * d1 + m_[5] * d2;
+      w3 = edge + m_[6] * d0 + m_[7] * d1 + m_[8] * d2;
+      for (int i = end; i >= start; i--) {
+         double w = b_ * p[i] + b1_ * w1 + b2_ * w2 + b3_ * w3;
+         p[i] = (float) w;
+         w3 = w2;
+         w2 = w1;
+         w1 = w;
+      }
+   }
+   
+   /**
+    * Filters columns x0 up to x1, walking the image row by row so that 
+    * memory is read sequentially.  Rows above the image are replaced by 
+    * the edge row, which the first output of the causal pass leaves 
+    * unchanged; the anti-causal pass starts as in blurRow
+    */
+   private void blurColumns(float[] p, int width, int height, int x0, int x1) {
+      int n = x1 - x0;
+      int last = height - 1;
+      double[] edge = new double[n];
+      for (int x = x0; x < x1; x++) {
+         edge[x - x0] = p[last * width + x];
+      }
+      for (int y = 0; y < height; y++) {
+         int r1 = Math.max(y - 1, 0) * width;
+         int r2 = Math.max(y - 2, 0) * width;
+         int r3 = Math.max(y - 3, 0) * width;
+         int r = y * width;
+         for (int x = x0; x < x1; x++) {
+            p[r + x] = (float) (b_ * p[r + x] + b1_ * p[r1 + x] + 
+                    b2_ * p[r2 + x] + b3_ * p[r3 + x]);
+         }
+      }
+      double[] w1 = new double[n];
+      double[] w2 = new double[n];
+      double[] w3 = new double[n];
+      int r0 = last * width;
+      int r1 = Math.max(last - 1, 0) * width;
+      int r2 = Math.max(last - 2, 0) * width;
+      for (int x = x0; x < x1; x++) {
+         int i = x - x0;
+         double d0 = p[r0 + x] - edge[i];
+         double d1 = p[r1 + x] - edge[i];
+         double d2 = p[r2 + x] - edge[i];
+         w1[i] = edge[i] + m_[0] * d0 + m_[1] * d1 + m_[2] * d2;
+         w2[i] = edge[i] + m_[3] * d0 + m_[4] * d1 + m_[5] * d2;
+         w3[i] = edge[i] + m_[6] * d0 + m_[7] * d1 + m_[8] * d2;
+      }
+      for (int y = last; y >= 0; y--) {
+         int r = y * width;
+         for (int x = x0; x < x1; x++) {
+            int i = x - x0;
+            double w = b_ * p[r + x] + b1_ * w1[i] + b2_ * w2[i] + 
+                    b3_ * w3[i];
+            p[r + x] = (float) w;
+            // w3 is no longer needed, it becomes the newest value
+            w3[i] = w;
+         }
+         double[] t = w3;
+         w3 = w2;
+         w2 = w1;
+         w1 = t;
+      }
+   }
+   
+}
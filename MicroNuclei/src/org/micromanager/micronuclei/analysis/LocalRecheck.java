@@ -0,0 +1,112 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+
+/**
+ * Confirms a hit by re-thresholding a window around it
+ * 
+ * Instead of running the complete analysis again on a crop of the image, 
+ * this uses the filtered images and the objects found in the full frame.  
+ * Thresholds are re-calculated (Otsu) from the window only, and the hit is 
+ * confirmed when the nucleus is still foreground and enough of its 
+ * micronuclei are still large enough with the local threshold. 
+ * 
+ * All state lives in the arguments and the object itself, so several hits
+ * can be verified in parallel, each with its own LocalRecheck.
+ * 
+ * @author nico
+ */
+public class LocalRecheck {
+   private final int[] histogram_ = new int[Threshold.NBINS];
+   
+   /**
+    * @param engine engine that segmented the full frame
+    * @param nuclei nuclei found in the full frame
+    * @param nucleus id of the nucleus that is a hit
+    * @param microNuclei micronuclei, linked to their nuclei
+    * @param windowSize size of the (square) window in pixels
+    * @param minNumMN minimum number of micronuclei for a hit
+    * @param minSizeMN minimum micronucleus area (calibrated units)
+    * @param pixelArea area of a pixel (calibrated units)
+    * @return true when the hit is confirmed
+    */
+   public boolean confirm(SegmentationEngine engine, ObjectTable nuclei, 
+           int nucleus, ObjectTable microNuclei, int windowSize, int minNumMN,
+           double minSizeMN, double pixelArea) {
+      int width = engine.getWidth();
+      int height = engine.getHeight();
+      int w = Math.min(windowSize, width);
+      int h = Math.min(windowSize, height);
+      int cx = nuclei.getBoundsX(nucleus) + nuclei.getBoundsWidth(nucleus) / 2;
+      int cy = nuclei.getBoundsY(nucleus) + nuclei.getBoundsHeight(nucleus) / 2;
+      int x0 = Math.max(0, Math.min(cx - w / 2, width - w));
+      int y0 = Math.max(0, Math.min(cy - h / 2, height - h));
+      
+      float[] nucleiImage = engine.getNucleiImage();
+      float nucleiLevel = Threshold.otsuDark(nucleiImage, width, x0, y0, w, h, 
+              histogram_);
+      int nucleusPixels = countAbove(nuclei.getRoi(nucleus), nucleiImage, 
+              width, Float.NEGATIVE_INFINITY);
+      int nucleusForeground = countAbove(nuclei.getRoi(nucleus), nucleiImage, 
+              width, nucleiLevel);
+      if (2 * nucleusForeground < nucleusPixels) {
+         return false;
+      }
+      
+      float[] microNucleiImage = engine.getMicroNucleiImage();
+      float microNucleiLevel = Threshold.otsuDark(microNucleiImage, width, 
+              x0, y0, w, h, histogram_);
+      int confirmed = 0;
+      for (int mn = nuclei.getFirstChild(nucleus); mn != ObjectTable.NONE; 
+              mn = microNuclei.getNextSibling(mn)) {
+         int foreground = countAbove(microNuclei.getRoi(mn), microNucleiImage,
+                 width, microNucleiLevel);
+         if (foreground * pixelArea >= minSizeMN) {
+            confirmed++;
+         }
+      }
+      return confirmed >= minNumMN;
+   }
+   
+   /**
+    * Counts the pixels inside the roi that are at or above the given level
+    */
+   private static int countAbove(Roi roi, float[] pixels, int width, 
+           float level) {
+      Rectangle r = roi.getBounds();
+      ImageProcessor mask = roi.getMask();
+      int count = 0;
+      for (int y = 0; y < r.height; y++) {
+         int row = (r.y + y) * width + r.x;
+         for (int x = 0; x < r.width; x++) {
+            if ((mask == null || mask.get(x, y) != 0) && 
+                    pixels[row + x] >= level) {
+               count++;
+            }
+         }
+      }
+      return count;
+   }
+   
+}
@@ -19,28 +19,23 @@
 
 package org.micromanager.micronuclei.analysis;
 
-import ij.IJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
-import ij.measure.Calibration;
 import ij.measure.ResultsTable;
-import ij.plugin.Duplicator;
-import ij.plugin.filter.Analyzer;
-import ij.plugin.frame.RoiManager;
+import ij.process.ByteProcessor;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.geom.Point2D;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Callable;
 import mmcorej.TaggedImage;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.micronuclei.analysisinterface.AnalysisModule;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
 import org.micromanager.micronuclei.analysisinterface.AnalysisProperty;
 import org.micromanager.micronuclei.analysisinterface.PropertyException;
-import org.micromanager.utils.ImageUtils;
 import org.micromanager.utils.MMScriptException;
 
 /**
@@ -51,12 +46,17 @@ import org.micromanager.utils.MMScriptException;
 
 
 public class MicroNucleiAnalysisModule extends AnalysisModule {
-   private int nucleiCount_ = 0;
-   private int zappedNucleiCount_ = 0;
+   // read by MicroNucleiSettings
    AnalysisProperty minSizeMN_, maxSizeMN_, minSizeN_, maxSizeN_,
            maxDistance_, minNMNPerNucleus_, maxStdDev_, maxNumberOfNuclei_,
-           maxNumberOfZaps_, checkInSmallerImage_, minEdgeDistance_; 
+           maxNumberOfZaps_, checkInSmallerImage_, minEdgeDistance_,
+           recheckInFullImage_, tileSize_, minContrast_, minFocus_; 
    private final String UINAME = "MicroNucleiAnalysis";
+   private volatile MicroNucleiSettings settings_;
+   // set by the acquisition thread, read by the analysis threads
+   private volatile FlatFieldCorrection correction_;
+   // images analyzed at the same time take turns showing their results
+   private static final Object RESULTSLOCK = new Object();
    
    
    public MicroNucleiAnalysisModule()  {
@@ -86,6 +86,14 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
                  "Skip image if more than this number should be zapped", 15);
          checkInSmallerImage_ = new AnalysisProperty(this.getClass(), 
                   "Check again in subregion", true);
+         recheckInFullImage_ = new AnalysisProperty(this.getClass(),
+                  "Check subregions using full image data", false);
+         tileSize_ = new AnalysisProperty(this.getClass(),
+                  "Analyze large images in tiles of (pixels, 0 = off)", 0);
+         minContrast_ = new AnalysisProperty(this.getClass(),
+                  "Skip images with a contrast below (0 = off)", 0.0);
+         minFocus_ = new AnalysisProperty(this.getClass(),
+                  "Skip images with a focus score below (0 = off)", 0.0);
          List<AnalysisProperty> apl = new ArrayList<AnalysisProperty>();
          apl.add(minSizeMN_);
          apl.add(maxSizeMN_);
@@ -96,7 +104,11 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
          apl.add(maxNumberOfNuclei_);
          apl.add(maxNumberOfZaps_);
          apl.add(checkInSmallerImage_);
+         apl.add(recheckInFullImage_);
          apl.add(minEdgeDistance_);
+         apl.add(tileSize_);
+         apl.add(minContrast_);
+         apl.add(minFocus_);
          
          setAnalysisProperties(apl);
       } catch (PropertyException ex) {
@@ -105,59 +117,134 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
    }
    
    /**
-    * Simple class just so that we can get information back out of a method
+    * Everything we know about an analyzed image, so that hits can be 
+    * checked again without re-doing the segmentation
+    * The engine and tables belong to the pool of the thread, and are only
+    * valid until the next image is analyzed on that thread
     */
-   class MutableInt {
-      private int val_;
-      MutableInt(int val) {
-         val_ = val;
-      }
-      void set(int newVal){
-         val_ = newVal;
+   private static class FrameAnalysis {
+      final Roi[] hits_;
+      final int[] hitIds_;
+      final SegmentationEngine engine_;
+      final ObjectTable nuclei_;
+      final ObjectTable microNuclei_;
+      final int[] microNucleiCounts_;
+      
+      FrameAnalysis(int[] hitIds, int nrHits, SegmentationEngine engine, 
+              ObjectTable nuclei, ObjectTable microNuclei) {
+         microNucleiCounts_ = new int[nuclei.size()];
+         for (int n = 0; n < microNucleiCounts_.length; n++) {
+            microNucleiCounts_[n] = nuclei.getChildCount(n);
+         }
+         hitIds_ = new int[nrHits];
+         System.arraycopy(hitIds, 0, hitIds_, 0, nrHits);
+         hits_ = new Roi[nrHits];
+         for (int i = 0; i < nrHits; i++) {
+            hits_[i] = nuclei.getRoi(hitIds[i]);
+         }
+         engine_ = engine;
+         nuclei_ = nuclei;
+         microNuclei_ = microNuclei;
       }
-      int get() { return val_; }
    }
   
+   /**
+    * Converts the background and flatfield once per run, rather than for 
+    * every image
+    */
    @Override
-   public Roi[] analyze(TaggedImage tImg, JSONObject parms) throws MMScriptException {
-      
-
-      nucleiCount_ = parms.optInt(CELLCOUNT, 0);
-      zappedNucleiCount_ = parms.optInt(OBJECTCOUNT, 0);
+   public void setCorrectionImages(ImagePlus background, ImagePlus flatField) {
+      super.setCorrectionImages(background, flatField);
+      FlatFieldCorrection correction = null;
+      if (background != null || flatField != null) {
+         try {
+            correction = new FlatFieldCorrection(background, flatField);
+         } catch (IllegalArgumentException iae) {
+            ij.IJ.log("No background and flatfield correction applied: " + 
+                    iae.getMessage());
+         }
+      }
+      correction_ = correction;
+   }
+   
+   @Override
+   public void prepare(JSONObject parms) {
+      settings_ = new MicroNucleiSettings(this, 
+              parms.optBoolean(SHOWMASKS, false));
+   }
+   
+   @Override
+   public AnalysisResult analyze(TaggedImage tImg) throws MMScriptException {
+      MicroNucleiSettings settings = settings_;
+      if (settings == null) {
+         // not prepared, use the current properties
+         settings = new MicroNucleiSettings(this, false);
+      }
 
       long startTime = System.currentTimeMillis();
+      BufferPool pool = BufferPool.get();
       
-      ImagePlus imp = new ImagePlus ("tmp", ImageUtils.makeProcessor(tImg));
-      Calibration cal = imp.getCalibration();
+      // the camera pixels are used as they are, nothing is copied
+      PixelView view;
       try {
-         cal.pixelWidth = tImg.tags.getDouble("PixelSizeUm"); 
-         cal.pixelHeight = cal.pixelWidth;
+         view = PixelView.of(tImg, getPixelType());
       } catch(JSONException je) {
-         throw new MMScriptException ("Failed to find pixelsize in the metadata");
+         throw new MMScriptException (
+                 "Failed to find image size or pixelsize in the metadata");
       }
-      // remove images that have the well edge in them
-      double stdDev = imp.getStatistics().stdDev;
-      // do not analyze images whose stdev is above this value
-      // Use this to remove images showing well edges
-      final double maxStdDev = (Double) maxStdDev_.get();
-      if (stdDev > maxStdDev) {
-         return null;
+      int width = view.getWidth();
+      int height = view.getHeight();
+      FlatFieldCorrection correction = getCorrection(width, height);
+      boolean tiled = isTiled(settings, width, height);
+      
+      // correct the image, convert it for the analysis and gather its 
+      // statistics in a single pass.  Images analyzed in tiles are loaded 
+      // tile by tile, so for those we only gather the statistics here
+      FrameStatistics stats = pool.getStatistics();
+      SegmentationEngine engine = null;
+      if (tiled) {
+         correction.load(view, null, stats);
+      } else {
+         engine = pool.getEngine();
+         engine.setImage(view, correction, stats);
       }
       
-      MutableInt nrNuclei = new MutableInt(0);
+      // remove images that have the well edge in them, are empty, or are
+      // out of focus.  
+      // do not analyze images whose stdev is above maxStdDev
+      // Use this to remove images showing well edges
+      PreScreen preScreen = new PreScreen(settings.getMaxStdDev(), 
+              settings.getMinContrast(), settings.getMinFocus());
+      PreScreen.Verdict verdict = preScreen.screen(stats, view, correction);
+      if (verdict != PreScreen.Verdict.ACCEPTED) {
+         ij.IJ.log("Skipping image: " + verdict.getDescription() + 
+                 " (mean: " + preScreen.getMean() + ", std. dev.: " + 
+                 preScreen.getStdDev() + ", contrast: " + 
+                 preScreen.getContrast() + ", focus: " + 
+                 preScreen.getFocus() + ")");
+         return AnalysisResult.skipped(verdict.getDescription(), 
+                 System.currentTimeMillis() - startTime);
+      }
       
-      Roi[] hits = analyzeImagePlus(imp, cal, parms, nrNuclei);
-      nucleiCount_ += nrNuclei.get();
+      FrameAnalysis frame = analyzeView(view, engine, correction, settings, 
+              tiled);
+      Roi[] hits = frame.hits_;
 
       
-      if ( (Boolean) checkInSmallerImage_.get() ) {
+      // full image data are not kept when the image was analyzed in tiles
+      if (settings.getCheckInSmallerImage() && 
+              settings.getRecheckInFullImage() && frame.engine_ != null) {
+         ij.IJ.log("Running sub-analysis using full image data");
+         hits = recheck(frame, settings, view.getPixelSize());
+      } else if (settings.getCheckInSmallerImage()) {
          ArrayList<Roi> cleanedHits = new ArrayList<Roi>();
          // Check all our hits by taking a subregion of the original image 
          // and re-running the analysis
          ij.IJ.log("Running sub-analysis");
          for (Roi roi : hits) {
-            ImagePlus region = getRegion (imp, roi, 200);
-            Roi[] newHits = analyzeImagePlus(region, cal, parms, nrNuclei);
+            PixelView region = view.crop(getRegion(view, roi, 200));
+            Roi[] newHits = analyzeView(region, null, correction, settings, 
+                    false).hits_;
             if (newHits.length > 0)
                cleanedHits.add(roi);
          }
@@ -166,256 +253,323 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
       }
       
       
-      zappedNucleiCount_ += hits.length;
-      try {
-         parms.put(CELLCOUNT, nucleiCount_);
-         parms.put(OBJECTCOUNT, zappedNucleiCount_);
-      } catch (JSONException ex) {
-         ij.IJ.log("MicroNucleiAnalysis.java: This should never happen!!!");
-      }
-      
-      
       long endTime = System.currentTimeMillis();
-      ij.IJ.log("Analysis took: " + (endTime - startTime) + " millisec");
+      ij.IJ.log("Analysis took: " + (endTime - startTime) + " millisec" + 
+              ", buffers re-used so far: " + BufferPool.getHits() + 
+              ", allocated: " + BufferPool.getMisses());
       
-      return hits;
+      return new AnalysisResult(hits, frame.microNucleiCounts_, 
+              endTime - startTime);
    }
    
    
    /**
     * 
-    * @param imp
-    * @param cal
-    * @param parms
-    * @param nrNuclei
-    * @return 
+    * @param view image, or part of an image, to be analyzed
+    * @param engine engine with the view already loaded, or null
+    * @param correction background and flatfield correction of the image
+    * @param settings settings of this run
+    * @param tiled whether the view should be segmented in tiles
+    * @return hits and the intermediate results they were derived from
     */
-   private Roi[] analyzeImagePlus(ImagePlus imp, Calibration cal, JSONObject parms,
-           MutableInt nrNuclei) {
+   private FrameAnalysis analyzeView(PixelView view, 
+           SegmentationEngine engine, FlatFieldCorrection correction,
+           MicroNucleiSettings settings, boolean tiled) {
       
-      boolean showMasks = false;
-      try {
-         showMasks = parms.getBoolean(AnalysisModule.SHOWMASKS);
-      } catch (JSONException jex) { // do nothing
-      }
+      final boolean showMasks = settings.getShowMasks();
       
       // microNuclei allowed sizes
-      final double microNucleiMinSize = (Double) minSizeMN_.get();
-      final double microNucleiMaxSize = (Double) maxSizeMN_.get();
+      final double microNucleiMinSize = settings.getMicroNucleiMinSize();
+      final double microNucleiMaxSize = settings.getMicroNucleiMaxSize();
       // nuclei allowed sized
-      final double nucleiMinSize = (Double) minSizeN_.get();
-      final double nucleiMaxSize = (Double) maxSizeN_.get();
+      final double nucleiMinSize = settings.getNucleiMinSize();
+      final double nucleiMaxSize = settings.getNucleiMaxSize();
       // max distance a micronucleus can be separated from a nucleus
-      final double maxDistance = (Double) maxDistance_.get();
-      // min distance a micronucleus should be from the edge of the image
-      final double minEdgeDistance = (Double) minEdgeDistance_.get(); // in microns
+      final double maxDistance = settings.getMaxDistance();
       // minimum number of "micronuclei" we want per nucleus to score as a hit
-      final int minNumMNperNucleus = (Integer) minNMNPerNucleus_.get();
+      final int minNumMNperNucleus = settings.getMinNumMNPerNucleus();
 
       // if the image has more than this number of nuclei, do not zap
-      final int maxNumberOfNuclei = (Integer) maxNumberOfNuclei_.get();
+      final int maxNumberOfNuclei = settings.getMaxNumberOfNuclei();
       // if more than this number of nuclei should be zapped, skip zapping altogether
-      final int maxNumberOfZaps = (Integer) maxNumberOfZaps_.get();
+      final int maxNumberOfZaps = settings.getMaxNumberOfZaps();
 
-      double pixelSize; // not sure why, but imp.getCalibration is unreliable
+      double pixelSize = view.getPixelSize();
 
       
       // start of the main code
-      List<Point2D.Double> microNuclei = new ArrayList<Point2D.Double>();
-      Map<Point2D.Double, Roi> microNucleiROIs = new HashMap<Point2D.Double, Roi>();
-      Map<Point2D.Double, ArrayList<Point2D.Double> > nuclei = 
-              new HashMap<Point2D.Double, ArrayList<Point2D.Double> >();
-      //nucleiContents = new ArrayList();
-      Map<Point2D.Double, Roi> nucleiRois = new HashMap<Point2D.Double, Roi>();
-      Map<Point2D.Double, Double> nucleiSizes = new HashMap<Point2D.Double, Double>();
-      List<Point2D.Double> zapNuclei = new ArrayList<Point2D.Double>();
-
-      // clean results table	
-      ResultsTable res = ij.measure.ResultsTable.getResultsTable();
-      res.reset();
-
-      int width = imp.getProcessor().getWidth();
-      int height = imp.getProcessor().getHeight();
-      double widthUm = cal.getX(width);
-      double heightUm = cal.getY(height);
-      pixelSize = cal.getX(1.0);
-
-      ImagePlus imp2 = (new Duplicator()).run(imp, 1, 1);
-
-      // find micronuclei by sharpening, segmentation using Otsu, and Watershed
-      ImagePlus microNucleiImp = imp2.duplicate();
-      IJ.run(microNucleiImp, "16-bit", "");
-      IJ.run(microNucleiImp, "Sharpen", "");
-      IJ.setAutoThreshold(microNucleiImp, "Otsu dark");
-      ij.Prefs.blackBackground = true;
-      IJ.run(microNucleiImp, "Convert to Mask", "");
-      IJ.run(microNucleiImp, "Close-", "");
-      IJ.run(microNucleiImp, "Watershed", "");
-      IJ.run("Set Measurements...", "area center decimal=2");
-      IJ.run(microNucleiImp, "Analyze Particles...", "size=" + microNucleiMinSize + "-" + microNucleiMaxSize
-              + "  show clear add");
-
-      // Build up a list of potential micronuclei
-      RoiManager rm = RoiManager.getInstance2();
-      if (rm == null) {
-         rm = new RoiManager();
-      }
-      for (Roi roi  : rm.getRoisAsArray()) {
-         // approximate microNuclear positions as the center of the bounding box
-         Rectangle rc = roi.getBounds();
-         double xc = rc.x + 0.5 * rc.width;
-         double yc = rc.y + 0.5 * rc.height;
-         xc *= pixelSize;
-         yc *= pixelSize;
-         Point2D.Double pt = new java.awt.geom.Point2D.Double(xc, yc);
-         microNuclei.add(pt);
-         microNucleiROIs.put(pt, roi);
-      }
-
-      // find nuclei by smoothing and gaussian filtering, 
-      // followed by Otsu segmentation and watershed
-      ImagePlus nucleiImp = imp2.duplicate();
-      ResultsTable rt = Analyzer.getResultsTable();
-      IJ.run(nucleiImp, "Smooth", "");
-      IJ.run(nucleiImp, "Gaussian Blur...", "sigma=5.0");
-      IJ.setAutoThreshold(nucleiImp, "Otsu dark");
-      ij.Prefs.blackBackground = true;
-      IJ.run(nucleiImp, "Convert to Mask", "");
-      IJ.run(nucleiImp, "Dilate", "");
-      IJ.run(nucleiImp, "Erode", "");
-      IJ.run(nucleiImp, "Watershed", "");
-      IJ.run("Set Measurements...", "area center decimal=2");
-      // include large nuclei here so that we will assign the corresponding microNuclei 
-      // correctly.  Weed these out later
-      rt.reset();
-      IJ.run(nucleiImp, "Analyze Particles...", "size=" + nucleiMinSize + "-" +
-              4 * nucleiMaxSize + "  clear add display");
-      rt.updateResults();
-
-      // get nuclei from RoiManager and add to our list of nuclei:
-      rm = RoiManager.getInstance2();
-      int counter = 0;
-      Roi[] roiManagerRois = rm.getRoisAsArray();
-      if (roiManagerRois.length == rt.getCounter()) {
-         for (Roi roi : roiManagerRois) {
-            // approximate nuclear positions as the center of the bounding box
-            Rectangle rc = roi.getBounds();
-            double xc = rc.x + 0.5 * rc.width;
-            double yc = rc.y + 0.5 * rc.height;
-            xc *= pixelSize;
-            yc *= pixelSize;
-            Point2D.Double pt = new java.awt.geom.Point2D.Double(xc, yc);
-            nucleiRois.put(pt, roi);
-            ArrayList<Point2D.Double> containedMNs = new ArrayList<Point2D.Double>();
-            nuclei.put(pt, containedMNs);
-            nucleiSizes.put(pt, rt.getValue("Area", counter));
-            counter++;
+      // the tables of the pool are valid until the next call on this thread
+      BufferPool pool = BufferPool.get();
+      ObjectTable microNuclei = pool.getMicroNuclei();
+      ObjectTable nuclei = pool.getNuclei();
+
+      // results of this call only, shown in the "Results" window when done
+      ResultsTable res = new ResultsTable();
+
+      int width = view.getWidth();
+      int height = view.getHeight();
+      double widthUm = width * pixelSize;
+      double heightUm = height * pixelSize;
+
+      final double pixelArea = pixelSize * pixelSize;
+      ComponentLabeler nucleiLabeler = null;
+      ComponentLabeler microNucleiLabeler = null;
+      if (tiled) {
+         // Large image, segment in tiles.  The halo should contain the 
+         // largest nuclei we consider, the gaussian kernel, and maxDistance
+         double largestNucleus = 2.0 * Math.sqrt(4 * nucleiMaxSize / pixelArea / Math.PI);
+         int halo = (int) Math.ceil(Math.max(Math.max(maxDistance / pixelSize,
+                 largestNucleus), 3 * SegmentationEngine.NUCLEI_SIGMA + 2));
+         TiledSegmentation.Result tiles = 
+                 new TiledSegmentation(settings.getTileSize(), halo).
+                 segment(view, correction, pixelArea, 
+                 SegmentationEngine.NUCLEI_SIGMA, microNucleiMinSize, 
+                 microNucleiMaxSize, nucleiMinSize, 4 * nucleiMaxSize);
+         // add nuclei to our list of nuclei:
+         for (Particle particle : tiles.getNuclei()) {
+            addObject(nuclei, particle, pixelSize);
+         }
+         // Build up a list of potential micronuclei
+         for (Particle particle : tiles.getMicroNuclei()) {
+            addObject(microNuclei, particle, pixelSize);
+         }
+         if (showMasks) {
+            ij.IJ.log("Masks are not shown when analyzing in tiles");
          }
       } else {
-         ij.IJ.log("Number of Rois does not equal number of Particels in results table");
-      }
-
-      // either close or show the nuclear mask as desired
-      nucleiImp.changes = false;
-      if (showMasks) {
-         nucleiImp.show();
-      } else {
-         nucleiImp.close();
-      }
-
-      // either close of show the "micro-nuclear" mask as desired
-      microNucleiImp.changes = false;
-      if (showMasks) {
-         microNucleiImp.show();
-      } else {
-         microNucleiImp.close();
+         if (engine == null) {
+            engine = pool.getEngine();
+            engine.setImage(view, correction, null);
+         }
+         List<ComponentLabeler> branchResults = segmentFrame(engine, 
+                 pool.getNucleiLabeler(), pool.getMicroNucleiLabeler(), 
+                 pixelArea, microNucleiMinSize, microNucleiMaxSize, 
+                 nucleiMinSize, 4 * nucleiMaxSize, showMasks);
+         nucleiLabeler = branchResults.get(0);
+         microNucleiLabeler = branchResults.get(1);
+         addObjects(nuclei, nucleiLabeler, pixelSize);
+         addObjects(microNuclei, microNucleiLabeler, pixelSize);
       }
 
-      imp2.changes = false;
-      imp2.close();
-
       // cycle through the list of micronuclei
       // assign each to the nearest by nucleus (not more than maxdistance away)
-      for (Point2D.Double mn  : microNuclei) {
-         Point2D.Double cn = Distance.closest(mn, nuclei);
-         if (cn != null && maxDistance > Distance.distance(mn, cn)) {
-            nuclei.get(cn).add(mn);
+      // use a spatial index so that we only look at nuclei nearby
+      SpatialIndex nucleiIndex = pool.getNucleiIndex();
+      nucleiIndex.build(nuclei.getXArray(), nuclei.getYArray(), nuclei.size(), 
+              maxDistance);
+      for (int mn = 0; mn < microNuclei.size(); mn++) {
+         int closest = nucleiIndex.nearest(microNuclei.getX(mn), 
+                 microNuclei.getY(mn), maxDistance);
+         if (closest != ObjectTable.NONE) {
+            microNuclei.link(mn, nuclei, closest);
          }
       }
 
       // report what we found
-      res.reset();
 
       // this is a bit funky, but seems to work
       double roiMinSize = pixelSize * pixelSize * nucleiMinSize * 10;
-      for (Point2D.Double p  : nuclei.keySet()) {
-         res.incrementCounter();
-         res.addValue("X", p.x);
-         res.addValue("Y", p.y);
-         ArrayList<Point2D.Double> mnList = nuclei.get(p);
-         res.addValue("# mN", mnList.size());
+      // get a list with nuclei that we want to zap
+      int[] zapNuclei = new int[nuclei.size()];
+      int nrZaps = 0;
+      for (int n = 0; n < nuclei.size(); n++) {
+         int nrMN = nuclei.getChildCount(n);
          int zapit = 0;
-         if (nuclei.get(p).size() >= minNumMNperNucleus) {
-            double nSize = nucleiSizes.get(p);
+         if (nrMN >= minNumMNperNucleus) {
             // make sure that this nucleus is not too large
-            if (nSize < nucleiMaxSize) {
+            if (nuclei.getArea(n) < nucleiMaxSize) {
             // add to our target nuclei, except if these happen to be two nuclei that were 
                // lying close together. 
-               if (mnList.size() == 2) {
-                  Roi r0 = microNucleiROIs.get(mnList.get(0));
-                  Roi r1 = microNucleiROIs.get(mnList.get(1));
-                  if ((r0 != null && roiSize(r0) < roiMinSize)
-                          || (r1 != null && roiSize(r1) < roiMinSize)) {
-                     zapNuclei.add(p);
+               if (nrMN == 2) {
+                  int mn0 = nuclei.getFirstChild(n);
+                  int mn1 = microNuclei.getNextSibling(mn0);
+                  if (microNuclei.getBoundsArea(mn0) < roiMinSize
+                          || microNuclei.getBoundsArea(mn1) < roiMinSize) {
+                     zapNuclei[nrZaps++] = n;
                      zapit = 1;
                   }
                } else {
-                  zapNuclei.add(p);
+                  zapNuclei[nrZaps++] = n;
                   zapit = 1;
                }
             }
          }
+         res.incrementCounter();
+         res.addValue("X", nuclei.getX(n));
+         res.addValue("Y", nuclei.getY(n));
+         res.addValue("# mN", nrMN);
          res.addValue("Zap", zapit);
       }
 
-      res.show("Results");
-     
-
-      // get a list with rois that we want to zap
-      ArrayList<Roi> zapRois = new ArrayList<Roi>();
-      for (Point2D.Double p  : zapNuclei) {
-         Roi roi = nucleiRois.get(p);
-         zapRois.add(roi);
+      synchronized (RESULTSLOCK) {
+         res.show("Results");
       }
 
+
       ij.IJ.log("mn: " + microNuclei.size() + ", n: " + nuclei.size() + 
-                 ", zap: " + zapRois.size());
+                 ", zap: " + nrZaps);
       
       // make sure that we do not zap if there are too many nuclei in the image
       if (nuclei.size() > maxNumberOfNuclei) {
-         zapRois.clear();
+         nrZaps = 0;
          ij.IJ.log("Not zapping cells since there are too many nuclei per image");
          
       }
       // make sure that we do not zap if there are too many cells to be zapped
-      if (zapRois.size() > maxNumberOfZaps) {
-         zapRois.clear();
+      if (nrZaps > maxNumberOfZaps) {
+         nrZaps = 0;
          ij.IJ.log("Not zapping cells since there are too many cells to be zapped");
       }
       
-      nrNuclei.set(nuclei.size());
+      // only now trace the outlines, and only of the hits and their 
+      // micronuclei (needed when re-checking)
+      if (nucleiLabeler != null) {
+         for (int i = 0; i < nrZaps; i++) {
+            int n = zapNuclei[i];
+            nuclei.setRoi(n, nucleiLabeler.traceRoi(n));
+            for (int mn = nuclei.getFirstChild(n); mn != ObjectTable.NONE; 
+                    mn = microNuclei.getNextSibling(mn)) {
+               microNuclei.setRoi(mn, microNucleiLabeler.traceRoi(mn));
+            }
+         }
+      }
       
-      return zapRois.toArray(new Roi[zapRois.size()]);
+      return new FrameAnalysis(zapNuclei, nrZaps, engine, nuclei, microNuclei);
+   }
+   
+   /**
+    * Segments nuclei and micronuclei in the image loaded in the engine
+    * @return labeled nuclei, and labeled micronuclei.  Outlines can be 
+    *         traced as long as the engine is not re-used
+    */
+   private List<ComponentLabeler> segmentFrame(final SegmentationEngine engine,
+           final ComponentLabeler nucleiLabeler, 
+           final ComponentLabeler microNucleiLabeler, final double pixelArea, final double microNucleiMinSize, 
+           final double microNucleiMaxSize, final double nucleiMinSize, 
+           final double nucleiMaxSize, final boolean showTheMasks) {
+      final int width = engine.getWidth();
+      final int height = engine.getHeight();
+      // The two branches only share the (read-only) input pixels, so run 
+      // them at the same time, and wait for both before assigning 
+      // micronuclei to nuclei
+      Callable<ComponentLabeler> microNucleiBranch = new Callable<ComponentLabeler>() {
+         @Override
+         public ComponentLabeler call() {
+            // find micronuclei by sharpening, segmentation using Otsu, and Watershed
+            byte[] microNucleiMask = engine.segmentMicroNuclei();
+            ComponentLabeler labeler = microNucleiLabeler;
+            labeler.label(microNucleiMask, engine.getImage(), width, height, 
+                    pixelArea, microNucleiMinSize, microNucleiMaxSize);
+            // either show or forget the "micro-nuclear" mask as desired
+            if (showTheMasks) {
+               showMask("Micronuclei mask", microNucleiMask, width, height);
+            }
+            return labeler;
+         }
+      };
+      Callable<ComponentLabeler> nucleiBranch = new Callable<ComponentLabeler>() {
+         @Override
+         public ComponentLabeler call() {
+            // find nuclei by smoothing and gaussian filtering, 
+            // followed by Otsu segmentation and watershed
+            byte[] nucleiMask = engine.segmentNuclei(SegmentationEngine.NUCLEI_SIGMA);
+            // the caller includes large nuclei here so that we will assign the 
+            // corresponding microNuclei correctly.  These are weeded out later
+            ComponentLabeler labeler = nucleiLabeler;
+            labeler.label(nucleiMask, engine.getImage(), width, height, 
+                    pixelArea, nucleiMinSize, nucleiMaxSize);
+            // either show or forget the nuclear mask as desired
+            if (showTheMasks) {
+               showMask("Nuclei mask", nucleiMask, width, height);
+            }
+            return labeler;
+         }
+      };
+      List<Callable<ComponentLabeler>> branches = 
+              new ArrayList<Callable<ComponentLabeler>>(2);
+      branches.add(nucleiBranch);
+      branches.add(microNucleiBranch);
+      return Parallel.invokeAll(branches);
+   }
+   
+   /**
+    * Checks all hits again by re-thresholding a 200 x 200 pixel window around
+    * each of them, using the filtered images and objects of the full frame.
+    * All hits are checked in parallel.
+    * @param frame result of the full frame analysis
+    * @param settings settings of this run
+    * @param pixelSize size of a pixel in microns
+    * @return confirmed hits
+    */
+   private Roi[] recheck(final FrameAnalysis frame, 
+           MicroNucleiSettings settings, double pixelSize) {
+      final int minNumMNperNucleus = settings.getMinNumMNPerNucleus();
+      final double microNucleiMinSize = settings.getMicroNucleiMinSize();
+      final double pixelArea = pixelSize * pixelSize;
+      List<Callable<Boolean>> checks = 
+              new ArrayList<Callable<Boolean>>(frame.hitIds_.length);
+      for (final int nucleus : frame.hitIds_) {
+         checks.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+               return new LocalRecheck().confirm(frame.engine_, frame.nuclei_, 
+                       nucleus, frame.microNuclei_, 200, minNumMNperNucleus, 
+                       microNucleiMinSize, pixelArea);
+            }
+         });
+      }
+      List<Boolean> confirmed = Parallel.invokeAll(checks);
+      ArrayList<Roi> cleanedHits = new ArrayList<Roi>();
+      for (int i = 0; i < frame.hits_.length; i++) {
+         if (confirmed.get(i)) {
+            cleanedHits.add(frame.hits_[i]);
+         }
+      }
+      return cleanedHits.toArray(new Roi[cleanedHits.size()]);
    }
 
-        
+
+   /**
+    * Adds a particle to the table, positioned at the center of its 
+    * bounding box (in calibrated units)
+    */
+   private int addObject(ObjectTable table, Particle particle, double pixelSize) {
+      Rectangle rc = particle.getBounds();
+      double xc = (rc.x + 0.5 * rc.width) * pixelSize;
+      double yc = (rc.y + 0.5 * rc.height) * pixelSize;
+      return table.add(xc, yc, particle.getArea(), 
+              particle.getCentroidX() * pixelSize, 
+              particle.getCentroidY() * pixelSize, particle.getIntensity(),
+              rc.x, rc.y, rc.width, rc.height, particle.getRoi());
+   }
+   
    /**
-    * Calculate the size of an ImageJ ROI
+    * Adds all labeled objects to the table, without outlines.  Ids in the 
+    * table are the same as the object indices of the labeler
     */
-   private long roiSize(Roi r) {
-      return r.getBounds().width * r.getBounds().height;
+   private void addObjects(ObjectTable table, ComponentLabeler labeler, 
+           double pixelSize) {
+      for (int i = 0; i < labeler.getCount(); i++) {
+         int bx = labeler.getBoundsX(i);
+         int by = labeler.getBoundsY(i);
+         int bw = labeler.getBoundsWidth(i);
+         int bh = labeler.getBoundsHeight(i);
+         table.add((bx + 0.5 * bw) * pixelSize, (by + 0.5 * bh) * pixelSize,
+                 labeler.getArea(i), labeler.getCentroidX(i) * pixelSize, 
+                 labeler.getCentroidY(i) * pixelSize, 
+                 labeler.getIntensitySum(i), bx, by, bw, bh, null);
+      }
    }
    
+   /**
+    * Shows a copy of the mask, the original is re-used for the next image
+    */
+   private void showMask(String title, byte[] mask, int width, int height) {
+      new ImagePlus(title, 
+              new ByteProcessor(width, height, 
+              Arrays.copyOf(mask, width * height), null)).show();
+   }
+        
    /**
     * Returns the center of the given Roi
     */
@@ -428,12 +582,13 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
    }
    
    /**
-    * Returns an ImagePlus of the region around the Roi
-    * @param imp
+    * Returns the region of size x size pixels around the Roi, shifted to 
+    * lie within the image
+    * @param view
     * @param roi
     * @return 
     */
-   private ImagePlus getRegion (ImagePlus imp, Roi roi, int size) 
+   private Rectangle getRegion (PixelView view, Roi roi, int size) 
    {
       int halfsize = (int) (0.5 * size);
       Point center = getCenter(roi);
@@ -443,20 +598,38 @@ public class MicroNucleiAnalysisModule extends AnalysisModule {
       int y = center.y - halfsize;
       if (y < 0)
          y = 0;
-      if (x + size > imp.getWidth())
-         x = imp.getWidth() - size;
-      if (y+ size > imp.getHeight())
-         y = imp.getHeight() - size;
-      
-      imp.setRoi(x, y, size, size);
+      if (x + size > view.getWidth())
+         x = view.getWidth() - size;
+      if (y+ size > view.getHeight())
+         y = view.getHeight() - size;
       
-      return imp.duplicate();
+      // the crop clips regions that are larger than the image
+      return new Rectangle(Math.max(x, 0), Math.max(y, 0), size, size);
    }
-
-   @Override
-   public void reset() {
-      nucleiCount_ = 0;
-      zappedNucleiCount_ = 0; 
+   
+   /**
+    * Large images are segmented in tiles when a tile size is set
+    */
+   private boolean isTiled(MicroNucleiSettings settings, int width, 
+           int height) {
+      int tileSize = settings.getTileSize();
+      return tileSize > 0 && (width > tileSize || height > tileSize);
+   }
+   
+   /**
+    * @return the correction set for this module, when it fits the image
+    */
+   private FlatFieldCorrection getCorrection(int width, int height) {
+      FlatFieldCorrection correction = correction_;
+      if (correction == null) {
+         return FlatFieldCorrection.NONE;
+      }
+      if (!correction.fits(width, height)) {
+         ij.IJ.log("No background and flatfield correction applied: " + 
+                 "image size differs from the correction images");
+         return FlatFieldCorrection.NONE;
+      }
+      return correction;
    }
 
    @Override
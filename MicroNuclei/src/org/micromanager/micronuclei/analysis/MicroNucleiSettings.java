@@ -0,0 +1,168 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.micronuclei.analysis;
+
+/**
+ * Settings of the micronuclei analysis, as they were when a run started
+ * 
+ * Taken from the analysis properties once per run, so that images are 
+ * analyzed without looking up and unboxing the properties every time.
+ * Immutable, so it can be shared by all threads analyzing images, and 
+ * changes in the UI do not affect a run in progress.
+ * 
+ * @author nico
+ */
+public class MicroNucleiSettings {
+   private final double microNucleiMinSize_;
+   private final double microNucleiMaxSize_;
+   private final double nucleiMinSize_;
+   private final double nucleiMaxSize_;
+   private final double maxDistance_;
+   private final double minEdgeDistance_;
+   private final int minNumMNPerNucleus_;
+   private final int maxNumberOfNuclei_;
+   private final int maxNumberOfZaps_;
+   private final double maxStdDev_;
+   private final double minContrast_;
+   private final double minFocus_;
+   private final boolean checkInSmallerImage_;
+   private final boolean recheckInFullImage_;
+   private final int tileSize_;
+   private final boolean showMasks_;
+   
+   /**
+    * @param module module whose properties are copied
+    * @param showMasks whether masks should be shown
+    */
+   MicroNucleiSettings(MicroNucleiAnalysisModule module, boolean showMasks) {
+      microNucleiMinSize_ = (Double) module.minSizeMN_.get();
+      microNucleiMaxSize_ = (Double) module.maxSizeMN_.get();
+      nucleiMinSize_ = (Double) module.minSizeN_.get();
+      nucleiMaxSize_ = (Double) module.maxSizeN_.get();
+      maxDistance_ = (Double) module.maxDistance_.get();
+      minEdgeDistance_ = (Double) module.minEdgeDistance_.get();
+      minNumMNPerNucleus_ = (Integer) module.minNMNPerNucleus_.get();
+      maxNumberOfNuclei_ = (Integer) module.maxNumberOfNuclei_.get();
+      maxNumberOfZaps_ = (Integer) module.maxNumberOfZaps_.get();
+      maxStdDev_ = (Double) module.maxStdDev_.get();
+      minContrast_ = (Double) module.minContrast_.get();
+      minFocus_ = (Double) module.minFocus_.get();
+      checkInSmallerImage_ = (Boolean) module.checkInSmallerImage_.get();
+      recheckInFullImage_ = (Boolean) module.recheckInFullImage_.get();
+      tileSize_ = (Integer) module.tileSize_.get();
+      showMasks_ = showMasks;
+   }
+   
+   /**
+    * @return minimum micronucleus area (micron^2)
+    */
+   public double getMicroNucleiMinSize() {
+      return microNucleiMinSize_;
+   }
+   
+   /**
+    * @return maximum micronucleus area (micron^2)
+    */
+   public double getMicroNucleiMaxSize() {
+      return microNucleiMaxSize_;
+   }
+   
+   /**
+    * @return minimum nucleus area (micron^2)
+    */
+   public double getNucleiMinSize() {
+      return nucleiMinSize_;
+   }
+   
+   /**
+    * @return maximum nucleus area (micron^2)
+    */
+   public double getNucleiMaxSize() {
+      return nucleiMaxSize_;
+   }
+   
+   /**
+    * @return max distance a micronucleus can be separated from a nucleus
+    * (micron)
+    */
+   public double getMaxDistance() {
+      return maxDistance_;
+   }
+   
+   /**
+    * @return min distance a micronucleus should be from the edge of the 
+    * image (micron)
+    */
+   public double getMinEdgeDistance() {
+      return minEdgeDistance_;
+   }
+   
+   /**
+    * @return minimum number of micronuclei a nucleus needs to be a hit
+    */
+   public int getMinNumMNPerNucleus() {
+      return minNumMNPerNucleus_;
+   }
+   
+   /**
+    * @return images with more nuclei are not zapped
+    */
+   public int getMaxNumberOfNuclei() {
+      return maxNumberOfNuclei_;
+   }
+   
+   /**
+    * @return images with more hits are not zapped
+    */
+   public int getMaxNumberOfZaps() {
+      return maxNumberOfZaps_;
+   }
+   
+   public double getMaxStdDev() {
+      return maxStdDev_;
+   }
+   
+   public double getMinContrast() {
+      return minContrast_;
+   }
+   
+   public double getMinFocus() {
+      return minFocus_;
+   }
+   
+   public boolean getCheckInSmallerImage() {
+      return checkInSmallerImage_;
+   }
+   
+   public boolean getRecheckInFullImage() {
+      return recheckInFullImage_;
+   }
+   
+   /**
+    * @return size of the tiles large images are analyzed in, 0 for no tiles
+    */
+   public int getTileSize() {
+      return tileSize_;
+   }
+   
+   public boolean getShowMasks() {
+      return showMasks_;
+   }
+   
+}
@@ -0,0 +1,119 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+/**
+ * Binary morphology on bit packed masks, 64 pixels at a time
+ * Uses the 8-connected neighborhood with count = 1, which is what the ImageJ
+ * "Dilate", "Erode" and "Close-" commands do by default.
+ * Pixels outside the image are treated as background.
+ * The 3x3 neighborhood is separable, so each operation is a horizontal pass
+ * (shifts within a row, with carries between words) followed by a vertical
+ * pass (combining three rows).
+ *
+ * @author nico
+ */
+public class Morphology {
+
+   /**
+    * Sets every pixel that touches the foreground to foreground
+    * @param mask mask to be modified
+    * @param tmp scratch space, will be sized as needed
+    */
+   public static void dilate(BitMask mask, BitMask tmp) {
+      horizontal(mask, tmp, true);
+      int wpr = mask.getWordsPerRow();
+      int height = mask.getHeight();
+      long[] in = tmp.getWords();
+      long[] out = mask.getWords();
+      for (int y = 0; y < height; y++) {
+         int row = y * wpr;
+         for (int i = 0; i < wpr; i++) {
+            long w = in[row + i];
+            if (y > 0) {
+               w |= in[row - wpr + i];
+            }
+            if (y < height - 1) {
+               w |= in[row + wpr + i];
+            }
+            out[row + i] = w;
+         }
+      }
+   }
+
+   /**
+    * Sets every foreground pixel that touches the background to background
+    * @param mask mask to be modified
+    * @param tmp scratch space, will be sized as needed
+    */
+   public static void erode(BitMask mask, BitMask tmp) {
+      horizontal(mask, tmp, false);
+      int wpr = mask.getWordsPerRow();
+      int height = mask.getHeight();
+      long[] in = tmp.getWords();
+      long[] out = mask.getWords();
+      for (int y = 0; y < height; y++) {
+         int row = y * wpr;
+         boolean edgeRow = y == 0 || y == height - 1;
+         for (int i = 0; i < wpr; i++) {
+            out[row + i] = edgeRow ? 0L : 
+                    in[row - wpr + i] & in[row + i] & in[row + wpr + i];
+         }
+      }
+   }
+
+   /**
+    * Dilation followed by erosion
+    * @param mask mask to be modified
+    * @param tmp scratch space, will be sized as needed
+    */
+   public static void close(BitMask mask, BitMask tmp) {
+      dilate(mask, tmp);
+      erode(mask, tmp);
+   }
+
+   /**
+    * Combines each pixel with its left and right neighbor, using or 
+    * (dilate) or and (erode).  Bits outside the image are 0, i.e. 
+    * background, which is what makes the edges work out
+    */
+   private static void horizontal(BitMask mask, BitMask tmp, boolean or) {
+      int wpr = mask.getWordsPerRow();
+      int height = mask.getHeight();
+      tmp.setSize(mask.getWidth(), height);
+      long lastWordMask = mask.getLastWordMask();
+      long[] in = mask.getWords();
+      long[] out = tmp.getWords();
+      for (int y = 0; y < height; y++) {
+         int row = y * wpr;
+         for (int i = 0; i < wpr; i++) {
+            long w = in[row + i];
+            long prev = i > 0 ? in[row + i - 1] : 0L;
+            long next = i < wpr - 1 ? in[row + i + 1] : 0L;
+            // neighbor to the left moves up one bit, to the right down one
+            long left = (w << 1) | (prev >>> 63);
+            long right = (w >>> 1) | (next << 63);
+            out[row + i] = or ? w | left | right : w & left & right;
+         }
+         out[row + wpr - 1] &= lastWordMask;
+      }
+   }
+
+}
@@ -0,0 +1,279 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.gui.Roi;
+import java.util.Arrays;
+
+/**
+ * Table of segmented objects (nuclei or micronuclei) stored as parallel
+ * primitive arrays.  Objects are addressed by their id, which is the order
+ * in which they were added (0 - size() - 1).
+ * 
+ * Objects in one table can be linked to a parent in another table 
+ * (micronuclei to their nucleus).  Children of a parent are kept as a linked
+ * list through the firstChild and nextSibling arrays, so linking does not 
+ * allocate.
+ * 
+ * Tables grow when needed and can be cleared and re-used for the next image.
+ * Not thread safe.
+ * 
+ * @author nico
+ */
+public class ObjectTable {
+   public static final int NONE = -1;
+   
+   private int size_ = 0;
+   private double[] x_;
+   private double[] y_;
+   private double[] area_;
+   private double[] centroidX_;
+   private double[] centroidY_;
+   private double[] intensity_;
+   private int[] boundsX_;
+   private int[] boundsY_;
+   private int[] boundsWidth_;
+   private int[] boundsHeight_;
+   private int[] parent_;
+   private int[] nextSibling_;
+   private int[] firstChild_;
+   private int[] childCount_;
+   private Roi[] rois_;
+   
+   public ObjectTable(int capacity) {
+      allocate(Math.max(capacity, 16));
+   }
+   
+   /**
+    * Removes all objects, but keeps the memory
+    */
+   public void clear() {
+      Arrays.fill(rois_, 0, size_, null);
+      size_ = 0;
+   }
+   
+   /**
+    * Adds an object
+    * @param x x position (calibrated units)
+    * @param y y position (calibrated units)
+    * @param area area (calibrated units)
+    * @param cx x of the centroid (calibrated units)
+    * @param cy y of the centroid (calibrated units)
+    * @param intensity sum of the pixel intensities
+    * @param bx x of the bounding box (pixels)
+    * @param by y of the bounding box (pixels)
+    * @param bw width of the bounding box (pixels)
+    * @param bh height of the bounding box (pixels)
+    * @param roi outline of the object, can be null
+    * @return id of the new object
+    */
+   public int add(double x, double y, double area, double cx, double cy,
+           double intensity, int bx, int by, int bw, int bh, Roi roi) {
+      if (size_ == x_.length) {
+         allocate(2 * x_.length);
+      }
+      int id = size_;
+      x_[id] = x;
+      y_[id] = y;
+      area_[id] = area;
+      centroidX_[id] = cx;
+      centroidY_[id] = cy;
+      intensity_[id] = intensity;
+      boundsX_[id] = bx;
+      boundsY_[id] = by;
+      boundsWidth_[id] = bw;
+      boundsHeight_[id] = bh;
+      parent_[id] = NONE;
+      nextSibling_[id] = NONE;
+      firstChild_[id] = NONE;
+      childCount_[id] = 0;
+      rois_[id] = roi;
+      size_++;
+      return id;
+   }
+   
+   /**
+    * Makes object child of the object parent in the table parents
+    * @param child id of the object in this table
+    * @param parents table that holds the parent
+    * @param parent id of the parent in the parents table
+    */
+   public void link(int child, ObjectTable parents, int parent) {
+      parent_[child] = parent;
+      nextSibling_[child] = parents.firstChild_[parent];
+      parents.firstChild_[parent] = child;
+      parents.childCount_[parent]++;
+   }
+   
+   public int size() {
+      return size_;
+   }
+   
+   public double getX(int id) {
+      return x_[id];
+   }
+   
+   public double getY(int id) {
+      return y_[id];
+   }
+   
+   public double getArea(int id) {
+      return area_[id];
+   }
+   
+   public double getCentroidX(int id) {
+      return centroidX_[id];
+   }
+   
+   public double getCentroidY(int id) {
+      return centroidY_[id];
+   }
+   
+   /**
+    * @param id object
+    * @return sum of the intensities of all pixels in the object
+    */
+   public double getIntensity(int id) {
+      return intensity_[id];
+   }
+   
+   public int getBoundsX(int id) {
+      return boundsX_[id];
+   }
+   
+   public int getBoundsY(int id) {
+      return boundsY_[id];
+   }
+   
+   public int getBoundsWidth(int id) {
+      return boundsWidth_[id];
+   }
+   
+   public int getBoundsHeight(int id) {
+      return boundsHeight_[id];
+   }
+   
+   /**
+    * @param id object
+    * @return area of the bounding box in pixels
+    */
+   public long getBoundsArea(int id) {
+      return (long) boundsWidth_[id] * boundsHeight_[id];
+   }
+   
+   /**
+    * @param id object
+    * @return outline of the object, or null when it was not traced
+    */
+   public Roi getRoi(int id) {
+      return rois_[id];
+   }
+   
+   /**
+    * Outlines are expensive, so they can be added once it is known that
+    * they are needed
+    * @param id object
+    * @param roi outline of the object
+    */
+   public void setRoi(int id, Roi roi) {
+      rois_[id] = roi;
+   }
+   
+   public int getParent(int id) {
+      return parent_[id];
+   }
+   
+   /**
+    * @param id parent object
+    * @return id of the first child in the child table, or NONE
+    */
+   public int getFirstChild(int id) {
+      return firstChild_[id];
+   }
+   
+   /**
+    * @param id child object
+    * @return id of the next child of the same parent, or NONE
+    */
+   public int getNextSibling(int id) {
+      return nextSibling_[id];
+   }
+   
+   public int getChildCount(int id) {
+      return childCount_[id];
+   }
+   
+   /**
+    * X positions of all objects, for use in a SpatialIndex.  
+    * Only the first size() entries are valid.  Do not modify.
+    * @return backing array of x positions
+    */
+   public double[] getXArray() {
+      return x_;
+   }
+   
+   /**
+    * Y positions of all objects, for use in a SpatialIndex.  
+    * Only the first size() entries are valid.  Do not modify.
+    * @return backing array of y positions
+    */
+   public double[] getYArray() {
+      return y_;
+   }
+   
+   private void allocate(int capacity) {
+      x_ = grow(x_, capacity);
+      y_ = grow(y_, capacity);
+      area_ = grow(area_, capacity);
+      centroidX_ = grow(centroidX_, capacity);
+      centroidY_ = grow(centroidY_, capacity);
+      intensity_ = grow(intensity_, capacity);
+      boundsX_ = grow(boundsX_, capacity);
+      boundsY_ = grow(boundsY_, capacity);
+      boundsWidth_ = grow(boundsWidth_, capacity);
+      boundsHeight_ = grow(boundsHeight_, capacity);
+      parent_ = grow(parent_, capacity);
+      nextSibling_ = grow(nextSibling_, capacity);
+      firstChild_ = grow(firstChild_, capacity);
+      childCount_ = grow(childCount_, capacity);
+      Roi[] rois = new Roi[capacity];
+      if (rois_ != null) {
+         System.arraycopy(rois_, 0, rois, 0, size_);
+      }
+      rois_ = rois;
+   }
+   
+   private double[] grow(double[] a, int capacity) {
+      double[] b = new double[capacity];
+      if (a != null) {
+         System.arraycopy(a, 0, b, 0, size_);
+      }
+      return b;
+   }
+   
+   private int[] grow(int[] a, int capacity) {
+      int[] b = new int[capacity];
+      if (a != null) {
+         System.arraycopy(a, 0, b, 0, size_);
+      }
+      return b;
+   }
+   
+}
@@ -0,0 +1,109 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Shared thread pool for the analysis code, with a fork/join style helper
+ * 
+ * invokeAll runs the first task in the calling thread and hands the others
+ * to the pool.  Before waiting for a task, the caller runs it itself when 
+ * no pool thread has picked it up yet.  Tasks can therefore safely fork 
+ * tasks of their own (i.e. a tile forking its two segmentation branches)
+ * without the danger of all pool threads waiting for each other.
+ * 
+ * @author nico
+ */
+public class Parallel {
+   private static final int NTHREADS = 
+           Math.max(1, Runtime.getRuntime().availableProcessors());
+   private static final ExecutorService EXECUTOR = 
+           Executors.newFixedThreadPool(NTHREADS, new ThreadFactory() {
+      private final AtomicInteger counter_ = new AtomicInteger(0);
+      @Override
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "MicroNuclei analysis " + 
+                 counter_.incrementAndGet());
+         t.setDaemon(true);
+         return t;
+      }
+   });
+   
+   /**
+    * @return number of threads in the shared pool
+    */
+   public static int getNumberOfThreads() {
+      return NTHREADS;
+   }
+   
+   /**
+    * Executes all tasks, in parallel when possible, and waits for all of them
+    * @param <T> result type of the tasks
+    * @param tasks tasks to be executed
+    * @return results in the same order as the tasks
+    * @throws RuntimeException when one of the tasks threw, or when the 
+    *                          calling thread was interrupted
+    */
+   public static <T> List<T> invokeAll(List<? extends Callable<T>> tasks) {
+      List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+      for (Callable<T> task : tasks) {
+         futures.add(new FutureTask<T>(task));
+      }
+      for (int i = 1; i < futures.size(); i++) {
+         EXECUTOR.execute(futures.get(i));
+      }
+      List<T> results = new ArrayList<T>(futures.size());
+      for (FutureTask<T> future : futures) {
+         // no-op when the task already started in the pool
+         future.run();
+      }
+      try {
+         for (FutureTask<T> future : futures) {
+            results.add(future.get());
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         for (FutureTask<T> future : futures) {
+            future.cancel(true);
+         }
+         throw new IllegalStateException("Interrupted while analyzing", ie);
+      } catch (ExecutionException ee) {
+         Throwable cause = ee.getCause();
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         if (cause instanceof Error) {
+            throw (Error) cause;
+         }
+         throw new IllegalStateException(cause);
+      }
+      return results;
+   }
+   
+}
@@ -0,0 +1,96 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+
+/**
+ * Object found by the ComponentLabeler, in image coordinates
+ * 
+ * @author nico
+ */
+public class Particle {
+   private final Roi roi_;
+   private final int pixelCount_;
+   private final double area_;
+   private final Rectangle bounds_;
+   private final double centroidX_;
+   private final double centroidY_;
+   private final double intensity_;
+   
+   public Particle(Roi roi, int pixelCount, double area, Rectangle bounds,
+           double centroidX, double centroidY, double intensity) {
+      roi_ = roi;
+      pixelCount_ = pixelCount;
+      area_ = area;
+      bounds_ = bounds;
+      centroidX_ = centroidX;
+      centroidY_ = centroidY;
+      intensity_ = intensity;
+   }
+   
+   /**
+    * @return outline of the particle, can be null
+    */
+   public Roi getRoi() {
+      return roi_;
+   }
+   
+   /**
+    * @return number of foreground pixels in this particle
+    */
+   public int getPixelCount() {
+      return pixelCount_;
+   }
+   
+   /**
+    * @return area in calibrated units (i.e. micron^2)
+    */
+   public double getArea() {
+      return area_;
+   }
+   
+   public Rectangle getBounds() {
+      return bounds_;
+   }
+   
+   /**
+    * @return x of the centroid in pixels
+    */
+   public double getCentroidX() {
+      return centroidX_;
+   }
+   
+   /**
+    * @return y of the centroid in pixels
+    */
+   public double getCentroidY() {
+      return centroidY_;
+   }
+   
+   /**
+    * @return sum of the intensities of the pixels in this particle
+    */
+   public double getIntensity() {
+      return intensity_;
+   }
+   
+}
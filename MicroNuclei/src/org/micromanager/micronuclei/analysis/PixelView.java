@@ -0,0 +1,159 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.awt.Rectangle;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.micromanager.micronuclei.analysisinterface.PixelType;
+import org.micromanager.utils.MDUtils;
+
+/**
+ * Read-only view on the pixels of a TaggedImage, without copying them
+ * 
+ * Wraps the byte[], short[] or float[] array of the camera directly.  A 
+ * view can be a crop of a larger image: it then starts at an offset in the
+ * array, and rows are stride pixels apart.  Crops share the array with the 
+ * image they were taken from.
+ * 
+ * @author nico
+ */
+public class PixelView {
+   private final PixelType type_;
+   private final Object pixels_;
+   private final int stride_;
+   private final int x0_;
+   private final int y0_;
+   private final int width_;
+   private final int height_;
+   private final double pixelSize_;
+   private final boolean isCrop_;
+   
+   /**
+    * View on the complete image
+    * @param pixels byte[], short[] or float[] pixels
+    * @param width image width
+    * @param height image height
+    * @param pixelSize size of a pixel in microns
+    */
+   public PixelView(Object pixels, int width, int height, double pixelSize) {
+      this(PixelType.of(pixels), pixels, width, 0, 0, width, height, 
+              pixelSize, false);
+   }
+   
+   private PixelView(PixelType type, Object pixels, int stride, int x0, 
+           int y0, int width, int height, double pixelSize, boolean isCrop) {
+      type_ = type;
+      pixels_ = pixels;
+      stride_ = stride;
+      x0_ = x0;
+      y0_ = y0;
+      width_ = width;
+      height_ = height;
+      pixelSize_ = pixelSize;
+      isCrop_ = isCrop;
+   }
+   
+   /**
+    * Wraps the pixels of the image.  Width, height and pixel size are taken
+    * from its tags
+    * @param image image as it comes from the camera
+    * @param type pixel type chosen for the acquisition, or null to 
+    *             determine it from the pixels.  Also determined from the 
+    *             pixels when the image turns out to be of another type
+    * @return view on the complete image
+    * @throws JSONException when the tags lack width, height or pixel size
+    */
+   public static PixelView of(TaggedImage image, PixelType type) 
+           throws JSONException {
+      int width = MDUtils.getWidth(image.tags);
+      if (type == null || !type.accepts(image.pix)) {
+         type = PixelType.of(image.pix);
+      }
+      return new PixelView(type, image.pix, width, 0, 0, width, 
+              MDUtils.getHeight(image.tags), 
+              image.tags.getDouble("PixelSizeUm"), false);
+   }
+   
+   /**
+    * @param region region relative to this view, will be clipped to it
+    * @return view on the region, sharing the pixels with this view
+    */
+   public PixelView crop(Rectangle region) {
+      Rectangle r = region.intersection(new Rectangle(0, 0, width_, height_));
+      return new PixelView(type_, pixels_, stride_, x0_ + r.x, y0_ + r.y, 
+              Math.max(r.width, 0), Math.max(r.height, 0), pixelSize_, true);
+   }
+   
+   public PixelType getPixelType() {
+      return type_;
+   }
+   
+   /**
+    * @return the complete pixel array, rows are getStride() pixels apart
+    */
+   public Object getPixels() {
+      return pixels_;
+   }
+   
+   /**
+    * @return width of the image that holds this view
+    */
+   public int getStride() {
+      return stride_;
+   }
+   
+   /**
+    * @return left of this view in the complete image
+    */
+   public int getX0() {
+      return x0_;
+   }
+   
+   /**
+    * @return top of this view in the complete image
+    */
+   public int getY0() {
+      return y0_;
+   }
+   
+   public int getWidth() {
+      return width_;
+   }
+   
+   public int getHeight() {
+      return height_;
+   }
+   
+   /**
+    * @return size of a pixel in microns
+    */
+   public double getPixelSize() {
+      return pixelSize_;
+   }
+   
+   /**
+    * @return true when this view is part of a larger image
+    */
+   public boolean isCrop() {
+      return isCrop_;
+   }
+   
+}
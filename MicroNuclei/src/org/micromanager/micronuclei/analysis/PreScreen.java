@@ -0,0 +1,164 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+/**
+ * Quick test to decide whether an image is worth analyzing
+ * 
+ * Uses the statistics gathered while the frame was loaded, and for the 
+ * focus score looks at a regular grid of roughly 16000 pixels, so it takes
+ * a fraction of a millisecond even for large images.  Rejects:
+ *   - images showing the well edge (standard deviation too high)
+ *   - empty images (bright pixels are hardly brighter than the background)
+ *   - out of focus images (little detail relative to the contrast)
+ * 
+ * @author nico
+ */
+public class PreScreen {
+   private static final int NSAMPLES = 16384;
+   
+   public enum Verdict {
+      ACCEPTED ("accepted"),
+      WELL_EDGE ("standard deviation too high, probably the well edge"),
+      EMPTY ("no objects, field is empty"),
+      OUT_OF_FOCUS ("field is out of focus");
+      
+      private final String description_;
+      
+      Verdict(String description) {
+         description_ = description;
+      }
+      
+      public String getDescription() {
+         return description_;
+      }
+   }
+   
+   private final double maxStdDev_;
+   private final double minContrast_;
+   private final double minFocus_;
+   private double mean_;
+   private double stdDev_;
+   private double contrast_;
+   private double focus_;
+   
+   /**
+    * @param maxStdDev images with a higher standard deviation are rejected
+    * @param minContrast images where (99th percentile - median) / median is
+    *                    lower than this are considered empty. 0 switches 
+    *                    this test off
+    * @param minFocus images where the average difference between neighboring
+    *                 pixels, relative to (99th percentile - median), is lower
+    *                 than this are considered out of focus.  0 switches this
+    *                 test off
+    */
+   public PreScreen(double maxStdDev, double minContrast, double minFocus) {
+      maxStdDev_ = maxStdDev;
+      minContrast_ = minContrast;
+      minFocus_ = minFocus;
+   }
+   
+   /**
+    * @param stats statistics of the complete, corrected frame
+    * @param view the complete frame
+    * @param correction correction the statistics were gathered with, the 
+    *                   focus score is calculated on the same pixel values
+    * @return ACCEPTED, or the reason why the image should not be analyzed
+    */
+   public Verdict screen(FrameStatistics stats, PixelView view, 
+           FlatFieldCorrection correction) {
+      if (stats.getCount() < 2) {
+         return Verdict.EMPTY;
+      }
+      mean_ = stats.getMean();
+      stdDev_ = stats.getStdDev();
+      if (stdDev_ > maxStdDev_) {
+         return Verdict.WELL_EDGE;
+      }
+      if (stats.getMax() <= stats.getMin()) {
+         contrast_ = 0;
+         focus_ = 0;
+         return minContrast_ > 0 ? Verdict.EMPTY : Verdict.ACCEPTED;
+      }
+      
+      double median = stats.getPercentile(0.5);
+      double p99 = stats.getPercentile(0.99);
+      double range = Math.max(p99 - median, 1.0e-6);
+      contrast_ = range / Math.max(Math.abs(median), 1.0);
+      focus_ = sampleGradient(view, correction) / range;
+      if (minContrast_ > 0 && contrast_ < minContrast_) {
+         return Verdict.EMPTY;
+      }
+      if (minFocus_ > 0 && focus_ < minFocus_) {
+         return Verdict.OUT_OF_FOCUS;
+      }
+      return Verdict.ACCEPTED;
+   }
+   
+   /**
+    * Average absolute difference between horizontally neighboring pixels, 
+    * on a grid of about NSAMPLES pixels
+    */
+   private static double sampleGradient(PixelView view, 
+           FlatFieldCorrection correction) {
+      int width = view.getWidth();
+      int height = view.getHeight();
+      int step = (int) Math.max(1, Math.sqrt((double) width * height / NSAMPLES));
+      double gradient = 0;
+      int n = 0;
+      for (int y = 0; y < height; y += step) {
+         for (int x = 0; x + 1 < width; x += step) {
+            gradient += Math.abs(correction.get(view, x + 1, y) - 
+                    correction.get(view, x, y));
+            n++;
+         }
+      }
+      return n > 0 ? gradient / n : 0.0;
+   }
+   
+   /**
+    * @return mean of the last screened image
+    */
+   public double getMean() {
+      return mean_;
+   }
+   
+   /**
+    * @return standard deviation of the last screened image
+    */
+   public double getStdDev() {
+      return stdDev_;
+   }
+   
+   /**
+    * @return (99th percentile - median) / median of the last image
+    */
+   public double getContrast() {
+      return contrast_;
+   }
+   
+   /**
+    * @return focus score of the last image
+    */
+   public double getFocus() {
+      return focus_;
+   }
+   
+}
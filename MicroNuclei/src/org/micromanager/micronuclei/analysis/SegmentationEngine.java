@@ -0,0 +1,191 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import org.micromanager.micronuclei.analysisinterface.PixelType;
+
+/**
+ * In-process segmentation of nuclei and micronuclei
+ * Runs the same stages as the ImageJ macro commands used previously
+ * (Sharpen, Smooth, Gaussian Blur, Otsu, Convert to Mask, Close-, Dilate,
+ * Erode, Watershed), but works on pixel arrays owned by this object,
+ * so that no commands need to be parsed and no images need to be allocated
+ * for each image analyzed.
+ *
+ * An engine holds buffers for the largest image it has seen and is not 
+ * thread safe.  Use the engine of the BufferPool of the analysis thread.
+ *
+ * @author nico
+ */
+public class SegmentationEngine {
+   public static final double NUCLEI_SIGMA = 5.0;
+
+   private int width_;
+   private int height_;
+   private PixelType pixelType_;
+   private float[] pixels_;
+   private float[] microNucleiWork_;
+   private float[] nucleiWork_;
+   private GaussianFilter gaussian_;
+   private byte[] microNucleiMask_;
+   private byte[] nucleiMask_;
+   // thresholded masks for the morphology steps, one bit per pixel
+   private final BitMask microNucleiBits_ = new BitMask();
+   private final BitMask nucleiBits_ = new BitMask();
+   private final BitMask microNucleiTmp_ = new BitMask();
+   private final BitMask nucleiTmp_ = new BitMask();
+   private final int[] microNucleiHistogram_ = new int[Threshold.NBINS];
+   private final int[] nucleiHistogram_ = new int[Threshold.NBINS];
+   // one per branch, since the branches may run at the same time
+   private final Watershed microNucleiWatershed_ = new Watershed();
+   private final Watershed nucleiWatershed_ = new Watershed();
+
+   /**
+    * Loads the pixels seen through the view, applying background and 
+    * flatfield correction and gathering statistics in the same pass.
+    * A crop, i.e. a tile, is handled as if it were the whole image.
+    * The kernels used from here on are the ones for the type of the view.
+    * Buffers are only re-allocated when the view is larger than any image 
+    * loaded before
+    * @param view image or crop of an image
+    * @param correction correction for the complete image
+    * @param stats receives the statistics of the corrected view, or null
+    */
+   public void setImage(PixelView view, FlatFieldCorrection correction, 
+           FrameStatistics stats) {
+      allocate(view.getWidth(), view.getHeight());
+      pixelType_ = view.getPixelType();
+      correction.load(view, pixels_, stats);
+   }
+
+   private void allocate(int width, int height) {
+      // buffers only grow, so that alternating image sizes (i.e. frames 
+      // and re-check regions) do not cause allocations
+      int size = width * height;
+      pixels_ = BufferPool.floats(pixels_, size);
+      microNucleiWork_ = BufferPool.floats(microNucleiWork_, size);
+      nucleiWork_ = BufferPool.floats(nucleiWork_, size);
+      microNucleiMask_ = BufferPool.bytes(microNucleiMask_, size);
+      nucleiMask_ = BufferPool.bytes(nucleiMask_, size);
+      width_ = width;
+      height_ = height;
+   }
+
+   public int getWidth() {
+      return width_;
+   }
+
+   public int getHeight() {
+      return height_;
+   }
+
+   /**
+    * @return the image as loaded by setImage.  Do not modify.
+    * The array can be longer than getWidth() * getHeight()
+    */
+   public float[] getImage() {
+      return pixels_;
+   }
+
+   /**
+    * @return the sharpened image from the last call to segmentMicroNuclei.
+    * Do not modify, it will be overwritten by the next analysis
+    */
+   public float[] getMicroNucleiImage() {
+      return microNucleiWork_;
+   }
+
+   /**
+    * @return the blurred image from the last call to segmentNuclei.
+    * Do not modify, it will be overwritten by the next analysis
+    */
+   public float[] getNucleiImage() {
+      return nucleiWork_;
+   }
+
+   /**
+    * Finds micronuclei by sharpening, segmentation using Otsu, closing and
+    * watershed.  Integer images are sharpened with the 16-bit range, like 
+    * they were after the "16-bit" command.  Float images are sharpened 
+    * within their own range rather than being scaled to 16-bit first
+    * @return mask with micronuclei (255) on background (0)
+    */
+   public byte[] segmentMicroNuclei() {
+      if (pixelType_.isInteger()) {
+         Filters.sharpen(pixels_, microNucleiWork_, width_, height_, 
+                 PixelType.GRAY16.getMaxValue());
+      } else {
+         sharpenInRange(pixels_, microNucleiWork_);
+      }
+      Threshold.otsuDark(microNucleiWork_, width_, height_, 
+              microNucleiHistogram_, microNucleiBits_);
+      Morphology.close(microNucleiBits_, microNucleiTmp_);
+      microNucleiBits_.toBytes(microNucleiMask_);
+      microNucleiWatershed_.apply(microNucleiMask_, width_, height_);
+      return microNucleiMask_;
+   }
+
+   /**
+    * Finds nuclei by smoothing and gaussian filtering, followed by Otsu
+    * segmentation, dilation, erosion and watershed
+    * The Gaussian is recursive, so larger sigmas do not take more time
+    * @param sigma sigma of the Gaussian blur in pixels, no blur is applied
+    *              below GaussianFilter.MIN_SIGMA
+    * @return mask with nuclei (255) on background (0)
+    */
+   public byte[] segmentNuclei(double sigma) {
+      int size = width_ * height_;
+      float maxValue = pixelType_.isInteger() ? 
+              pixelType_.getMaxValue() : 0f;
+      Filters.smooth(pixels_, nucleiWork_, width_, height_, maxValue);
+      if (sigma >= GaussianFilter.MIN_SIGMA) {
+         if (gaussian_ == null || gaussian_.getSigma() != sigma) {
+            gaussian_ = new GaussianFilter(sigma);
+         }
+         gaussian_.blur(nucleiWork_, width_, height_);
+      }
+      if (maxValue > 0f) {
+         Filters.clamp(nucleiWork_, size, maxValue);
+      }
+      Threshold.otsuDark(nucleiWork_, width_, height_, nucleiHistogram_, 
+              nucleiBits_);
+      Morphology.dilate(nucleiBits_, nucleiTmp_);
+      Morphology.erode(nucleiBits_, nucleiTmp_);
+      nucleiBits_.toBytes(nucleiMask_);
+      nucleiWatershed_.apply(nucleiMask_, width_, height_);
+      return nucleiMask_;
+   }
+
+   private void sharpenInRange(float[] in, float[] out) {
+      int size = width_ * height_;
+      float min = Float.MAX_VALUE;
+      float max = -Float.MAX_VALUE;
+      for (int i = 0; i < size; i++) {
+         if (in[i] < min) {
+            min = in[i];
+         }
+         if (in[i] > max) {
+            max = in[i];
+         }
+      }
+      Filters.sharpen(in, out, width_, height_, min, max);
+   }
+
+}
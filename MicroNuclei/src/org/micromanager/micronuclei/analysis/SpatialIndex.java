@@ -0,0 +1,219 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+/**
+ * Uniform grid of points for fast nearest neighbor and radius queries
+ * Points are bucketed into square cells (stored as one sorted index array 
+ * with the start of each cell, so there are no per-cell objects). Queries 
+ * only look at the cells that can contain an answer.
+ * 
+ * The index can be re-built for every image, the arrays are only 
+ * re-allocated when they need to grow.  Not thread safe.
+ * 
+ * @author nico
+ */
+public class SpatialIndex {
+   private double[] x_;
+   private double[] y_;
+   private int n_;
+   private double cellSize_;
+   private double minX_;
+   private double minY_;
+   private int nCols_;
+   private int nRows_;
+   private int[] cellStart_ = new int[0];
+   private int[] items_ = new int[0];
+   private int[] cellOf_ = new int[0];
+   
+   /**
+    * Builds the index.  The coordinate arrays are referenced, not copied, 
+    * so they should not be changed while the index is in use
+    * @param x x coordinates
+    * @param y y coordinates
+    * @param n number of points (the arrays can be longer)
+    * @param cellSize size of a grid cell, ideally close to the typical 
+    *                 search radius
+    */
+   public void build(double[] x, double[] y, int n, double cellSize) {
+      x_ = x;
+      y_ = y;
+      n_ = n;
+      cellSize_ = cellSize > 0 ? cellSize : 1.0;
+      if (n == 0) {
+         nCols_ = 0;
+         nRows_ = 0;
+         return;
+      }
+      minX_ = x[0];
+      minY_ = y[0];
+      double maxX = x[0];
+      double maxY = y[0];
+      for (int i = 1; i < n; i++) {
+         minX_ = Math.min(minX_, x[i]);
+         minY_ = Math.min(minY_, y[i]);
+         maxX = Math.max(maxX, x[i]);
+         maxY = Math.max(maxY, y[i]);
+      }
+      nCols_ = (int) ((maxX - minX_) / cellSize_) + 1;
+      nRows_ = (int) ((maxY - minY_) / cellSize_) + 1;
+      // do not let a few outliers create a huge, sparse grid
+      while ((long) nCols_ * nRows_ > 4L * n + 16) {
+         cellSize_ *= 2;
+         nCols_ = (int) ((maxX - minX_) / cellSize_) + 1;
+         nRows_ = (int) ((maxY - minY_) / cellSize_) + 1;
+      }
+      int nCells = nCols_ * nRows_;
+      if (cellStart_.length < nCells + 1) {
+         cellStart_ = new int[nCells + 1];
+      } else {
+         for (int c = 0; c <= nCells; c++) {
+            cellStart_[c] = 0;
+         }
+      }
+      if (items_.length < n) {
+         items_ = new int[n];
+         cellOf_ = new int[n];
+      }
+      // counting sort of the points by cell
+      for (int i = 0; i < n; i++) {
+         int c = col(x[i]) + row(y[i]) * nCols_;
+         cellOf_[i] = c;
+         cellStart_[c + 1]++;
+      }
+      for (int c = 0; c < nCells; c++) {
+         cellStart_[c + 1] += cellStart_[c];
+      }
+      for (int i = n - 1; i >= 0; i--) {
+         items_[--cellStart_[cellOf_[i] + 1]] = i;
+      }
+      // cellStart_[c + 1] now points at the start of cell c, shift back
+      for (int c = 0; c < nCells; c++) {
+         cellStart_[c] = cellStart_[c + 1];
+      }
+      cellStart_[nCells] = n;
+   }
+   
+   public int size() {
+      return n_;
+   }
+   
+   /**
+    * Finds the point closest to (x, y), but not further than maxDistance
+    * @param x x coordinate of the search point
+    * @param y y coordinate of the search point
+    * @param maxDistance maximum distance to search, use 
+    *                    Double.POSITIVE_INFINITY for an unbounded search
+    * @return index of the closest point, the lowest of equally close 
+    *         points, or -1 if there is none 
+    */
+   public int nearest(double x, double y, double maxDistance) {
+      if (n_ == 0) {
+         return -1;
+      }
+      int best = -1;
+      double bestD2 = maxDistance == Double.POSITIVE_INFINITY ? 
+              Double.MAX_VALUE : maxDistance * maxDistance;
+      int c0 = col(x);
+      int r0 = row(y);
+      int maxRing = Math.max(nCols_, nRows_);
+      for (int ring = 0; ring <= maxRing; ring++) {
+         // any point in this ring is at least this far away
+         double ringDistance = (ring - 1) * cellSize_;
+         if (ring > 0 && ringDistance > 0 && 
+                 ringDistance * ringDistance > bestD2) {
+            break;
+         }
+         for (int r = r0 - ring; r <= r0 + ring; r++) {
+            if (r < 0 || r >= nRows_) {
+               continue;
+            }
+            boolean edgeRow = r == r0 - ring || r == r0 + ring;
+            int step = edgeRow ? 1 : 2 * ring;
+            for (int c = c0 - ring; c <= c0 + ring; c += Math.max(step, 1)) {
+               if (c < 0 || c >= nCols_) {
+                  continue;
+               }
+               int cell = c + r * nCols_;
+               for (int k = cellStart_[cell]; k < cellStart_[cell + 1]; k++) {
+                  int i = items_[k];
+                  double dx = x_[i] - x;
+                  double dy = y_[i] - y;
+                  double d2 = dx * dx + dy * dy;
+                  if (d2 < bestD2 || (d2 == bestD2 && i < best)) {
+                     bestD2 = d2;
+                     best = i;
+                  }
+               }
+            }
+         }
+      }
+      return best;
+   }
+   
+   /**
+    * Finds all points within radius of (x, y)
+    * @param x x coordinate of the search point
+    * @param y y coordinate of the search point
+    * @param radius search radius
+    * @param result receives the indices of the points found.  When it is too 
+    *               small, only the first result.length points are stored
+    * @return total number of points within radius
+    */
+   public int within(double x, double y, double radius, int[] result) {
+      if (n_ == 0) {
+         return 0;
+      }
+      double r2 = radius * radius;
+      int cMin = Math.max(0, col(x - radius));
+      int cMax = Math.min(nCols_ - 1, col(x + radius));
+      int rMin = Math.max(0, row(y - radius));
+      int rMax = Math.min(nRows_ - 1, row(y + radius));
+      int count = 0;
+      for (int r = rMin; r <= rMax; r++) {
+         for (int c = cMin; c <= cMax; c++) {
+            int cell = c + r * nCols_;
+            for (int k = cellStart_[cell]; k < cellStart_[cell + 1]; k++) {
+               int i = items_[k];
+               double dx = x_[i] - x;
+               double dy = y_[i] - y;
+               if (dx * dx + dy * dy <= r2) {
+                  if (count < result.length) {
+                     result[count] = i;
+                  }
+                  count++;
+               }
+            }
+         }
+      }
+      return count;
+   }
+   
+   private int col(double x) {
+      int c = (int) Math.floor((x - minX_) / cellSize_);
+      return c < 0 ? 0 : (c >= nCols_ ? nCols_ - 1 : c);
+   }
+   
+   private int row(double y) {
+      int r = (int) Math.floor((y - minY_) / cellSize_);
+      return r < 0 ? 0 : (r >= nRows_ ? nRows_ - 1 : r);
+   }
+   
+}
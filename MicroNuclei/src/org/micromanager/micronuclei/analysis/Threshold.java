@@ -0,0 +1,174 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+/**
+ * Otsu thresholding equivalent to IJ.setAutoThreshold(imp, "Otsu dark")
+ * The histogram has 256 bins spanning the min - max range of the image,
+ * just like ImageJ uses for 16-bit and float images
+ *
+ * @author nico
+ */
+public class Threshold {
+   public static final int NBINS = 256;
+
+   /**
+    * Segments bright objects on a dark background
+    * @param pixels input image
+    * @param width image width
+    * @param height image height
+    * @param histogram scratch space of at least NBINS ints
+    * @param mask output, set for foreground.  Will be sized as needed
+    * @return the lowest pixel value that is considered foreground
+    */
+   public static float otsuDark(float[] pixels, int width, int height, 
+           int[] histogram, BitMask mask) {
+      int length = width * height;
+      mask.setSize(width, height);
+      long[] words = mask.getWords();
+      int wordsPerRow = mask.getWordsPerRow();
+      float min = Float.MAX_VALUE;
+      float max = -Float.MAX_VALUE;
+      for (int i = 0; i < length; i++) {
+         float v = pixels[i];
+         if (v < min) {
+            min = v;
+         }
+         if (v > max) {
+            max = v;
+         }
+      }
+      if (max <= min) {
+         for (int i = 0; i < wordsPerRow * height; i++) {
+            words[i] = 0L;
+         }
+         return Float.MAX_VALUE;
+      }
+
+      double scale = NBINS / (double) (max - min);
+      for (int i = 0; i < NBINS; i++) {
+         histogram[i] = 0;
+      }
+      for (int i = 0; i < length; i++) {
+         histogram[bin(pixels[i], min, scale)]++;
+      }
+
+      int level = otsu(histogram);
+
+      // pack 64 pixels at a time
+      for (int y = 0; y < height; y++) {
+         int row = y * width;
+         for (int x = 0; x < width; x += 64) {
+            int end = Math.min(64, width - x);
+            long word = 0L;
+            for (int b = 0; b < end; b++) {
+               if (bin(pixels[row + x + b], min, scale) > level) {
+                  word |= 1L << b;
+               }
+            }
+            words[y * wordsPerRow + (x >>> 6)] = word;
+         }
+      }
+      return (float) (min + (level + 1) / scale);
+   }
+
+   /**
+    * Otsu threshold of a rectangular window of an image, for bright objects
+    * on a dark background
+    * @param pixels input image
+    * @param width width of the input image
+    * @param x0 left of the window
+    * @param y0 top of the window
+    * @param w width of the window
+    * @param h height of the window
+    * @param histogram scratch space of at least NBINS ints
+    * @return the lowest pixel value that is considered foreground
+    */
+   public static float otsuDark(float[] pixels, int width, int x0, int y0, 
+           int w, int h, int[] histogram) {
+      float min = Float.MAX_VALUE;
+      float max = -Float.MAX_VALUE;
+      for (int y = y0; y < y0 + h; y++) {
+         int row = y * width;
+         for (int x = x0; x < x0 + w; x++) {
+            float v = pixels[row + x];
+            if (v < min) {
+               min = v;
+            }
+            if (v > max) {
+               max = v;
+            }
+         }
+      }
+      if (max <= min) {
+         return Float.MAX_VALUE;
+      }
+      double scale = NBINS / (double) (max - min);
+      for (int i = 0; i < NBINS; i++) {
+         histogram[i] = 0;
+      }
+      for (int y = y0; y < y0 + h; y++) {
+         int row = y * width;
+         for (int x = x0; x < x0 + w; x++) {
+            histogram[bin(pixels[row + x], min, scale)]++;
+         }
+      }
+      return (float) (min + (otsu(histogram) + 1) / scale);
+   }
+
+   /**
+    * Otsu's method, as implemented in ImageJ's AutoThresholder
+    * @param data histogram
+    * @return highest bin that belongs to the background
+    */
+   public static int otsu(int[] data) {
+      int kStar = 0;
+      double n = 0;
+      double s = 0;
+      for (int k = 0; k < data.length; k++) {
+         s += (double) k * data[k];
+         n += data[k];
+      }
+      double sk = 0;
+      double n1 = 0;
+      double bcvMax = 0;
+      for (int k = 0; k < data.length; k++) {
+         n1 += data[k];
+         sk += (double) k * data[k];
+         double denom = n1 * (n - n1);
+         double bcv = 0;
+         if (denom != 0) {
+            double num = (n1 / n) * s - sk;
+            bcv = (num * num) / denom;
+         }
+         if (bcv >= bcvMax) {
+            bcvMax = bcv;
+            kStar = k;
+         }
+      }
+      return kStar;
+   }
+
+   private static int bin(float v, float min, double scale) {
+      int index = (int) ((v - min) * scale);
+      return index >= NBINS ? NBINS - 1 : index;
+   }
+
+}
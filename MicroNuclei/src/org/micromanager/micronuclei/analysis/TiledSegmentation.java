@@ -0,0 +1,163 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.gui.Roi;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * Segments large images (sCMOS frames, stitched mosaics) tile by tile
+ * 
+ * Every tile is extended by a halo on all sides and segmented on its own, 
+ * in parallel.  A particle belongs to the tile whose core (the tile without
+ * halo) contains the center of its bounding box, so particles on a seam are
+ * reported exactly once, and are complete as long as they are smaller than 
+ * the halo.  Only one tile-sized set of buffers is needed per thread, rather
+ * than several copies of the full image (see BufferPool).
+ * 
+ * Otsu thresholds are determined per tile (including halo), i.e. they adapt 
+ * to differences in intensity across a mosaic.
+ * 
+ * @author nico
+ */
+public class TiledSegmentation {
+   private final int tileSize_;
+   private final int halo_;
+   
+   /**
+    * Particles found in the complete image, in image coordinates
+    */
+   public static class Result {
+      private final List<Particle> nuclei_ = new ArrayList<Particle>();
+      private final List<Particle> microNuclei_ = new ArrayList<Particle>();
+      
+      public List<Particle> getNuclei() {
+         return nuclei_;
+      }
+      
+      public List<Particle> getMicroNuclei() {
+         return microNuclei_;
+      }
+   }
+   
+   /**
+    * @param tileSize width and height of the tile cores in pixels
+    * @param halo overlap added on each side of a tile in pixels
+    */
+   public TiledSegmentation(int tileSize, int halo) {
+      tileSize_ = tileSize;
+      halo_ = halo;
+   }
+   
+   /**
+    * @param image the complete image
+    * @param correction background and flatfield correction, applied to 
+    *                   each tile while it is loaded
+    * @param pixelArea area of a pixel in calibrated units
+    * @param sigma sigma of the Gaussian blur for nuclei detection (pixels)
+    * @param minSizeMN minimum micronucleus area (calibrated units)
+    * @param maxSizeMN maximum micronucleus area (calibrated units)
+    * @param minSizeN minimum nucleus area (calibrated units)
+    * @param maxSizeN maximum nucleus area (calibrated units)
+    * @return nuclei and micronuclei of the complete image
+    */
+   public Result segment(final PixelView image, 
+           final FlatFieldCorrection correction, final double pixelArea, 
+           final double sigma, final double minSizeMN, final double maxSizeMN, 
+           final double minSizeN, final double maxSizeN) {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      List<Callable<Result>> tiles = new ArrayList<Callable<Result>>();
+      for (int y = 0; y < height; y += tileSize_) {
+         for (int x = 0; x < width; x += tileSize_) {
+            final Rectangle core = new Rectangle(x, y, 
+                    Math.min(tileSize_, width - x), 
+                    Math.min(tileSize_, height - y));
+            tiles.add(new Callable<Result>() {
+               @Override
+               public Result call() {
+                  return segmentTile(image, correction, core, pixelArea, 
+                          sigma, minSizeMN, maxSizeMN, minSizeN, maxSizeN);
+               }
+            });
+         }
+      }
+      Result merged = new Result();
+      for (Result tile : Parallel.invokeAll(tiles)) {
+         merged.nuclei_.addAll(tile.nuclei_);
+         merged.microNuclei_.addAll(tile.microNuclei_);
+      }
+      return merged;
+   }
+   
+   private Result segmentTile(PixelView image, FlatFieldCorrection correction,
+           Rectangle core, double pixelArea, double sigma, 
+           double minSizeMN, double maxSizeMN, 
+           double minSizeN, double maxSizeN) {
+      int width = image.getWidth();
+      int height = image.getHeight();
+      int x0 = Math.max(0, core.x - halo_);
+      int y0 = Math.max(0, core.y - halo_);
+      int x1 = Math.min(width, core.x + core.width + halo_);
+      int y1 = Math.min(height, core.y + core.height + halo_);
+      int w = x1 - x0;
+      int h = y1 - y0;
+      
+      // tiles are self-contained, so use the pool of the thread running it
+      BufferPool pool = BufferPool.get();
+      SegmentationEngine engine = pool.getEngine();
+      engine.setImage(image.crop(new Rectangle(x0, y0, w, h)), correction, 
+              null);
+      ComponentLabeler labeler = pool.getNucleiLabeler();
+      Result result = new Result();
+      labeler.label(engine.segmentNuclei(sigma), engine.getImage(), w, h, 
+              pixelArea, minSizeN, maxSizeN);
+      keepOwned(labeler, core, x0, y0, result.nuclei_);
+      labeler.label(engine.segmentMicroNuclei(), engine.getImage(), w, h, 
+              pixelArea, minSizeMN, maxSizeMN);
+      keepOwned(labeler, core, x0, y0, result.microNuclei_);
+      return result;
+   }
+   
+   /**
+    * Adds objects whose center lies in the core of the tile to the output
+    * list, in image coordinates.  The tile masks are re-used for the next 
+    * tile, so outlines are traced right away, but only for these objects
+    */
+   private static void keepOwned(ComponentLabeler labeler, Rectangle core, 
+           int x0, int y0, List<Particle> out) {
+      for (int i = 0; i < labeler.getCount(); i++) {
+         Rectangle b = new Rectangle(x0 + labeler.getBoundsX(i), 
+                 y0 + labeler.getBoundsY(i), labeler.getBoundsWidth(i), 
+                 labeler.getBoundsHeight(i));
+         if (core.contains(b.x + b.width / 2, b.y + b.height / 2)) {
+            Roi roi = labeler.traceRoi(i);
+            roi.setLocation(b.x, b.y);
+            out.add(new Particle(roi, labeler.getPixelCount(i), 
+                    labeler.getArea(i), b, x0 + labeler.getCentroidX(i), 
+                    y0 + labeler.getCentroidY(i), labeler.getIntensitySum(i)));
+         }
+      }
+   }
+   
+}
@@ -0,0 +1,392 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.util.Arrays;
+
+/**
+ * Separates touching objects in a binary mask, like the ImageJ "Watershed"
+ * command: the Euclidean distance map (EDM) of the mask is calculated, 
+ * maxima of the EDM that stand out by more than 0.5 pixel become seeds, and
+ * the objects are flooded from these seeds.  Where two floods meet, a one 
+ * pixel wide line is set to background, so that the objects are no longer 
+ * 8-connected.
+ * 
+ * The EDM is calculated in linear time (Felzenszwalb and Huttenlocher, 
+ * "Distance Transforms of Sampled Functions", 2012), and flooding uses a 
+ * bucketed priority queue linked through a per-pixel array.  All buffers 
+ * belong to the object and are kept between calls.  Not thread safe, use 
+ * one instance per thread.
+ * 
+ * @author nico
+ */
+public class Watershed {
+   // same tolerance as ImageJ's EDM uses for finding maxima
+   private static final float TOLERANCE = 0.5f;
+   // number of priority levels per pixel of distance
+   private static final int BUCKETS_PER_PIXEL = 4;
+   private static final int UNLABELED = 0;
+   private static final int LINE = -1;
+   private static final int QUEUED = -2;
+   private static final float INF = 1.0e20f;
+   
+   private float[] edm_;
+   private int[] labels_;
+   private int[] next_;
+   private int[] stack_;
+   private int[] floodStamp_;
+   private long[] candidates_;
+   private int[] seeds_;
+   private int[] head_ = new int[256];
+   private int[] tail_ = new int[256];
+   // row buffers of the distance transform
+   private float[] f_ = new float[0];
+   private float[] z_ = new float[1];
+   private int[] v_ = new int[0];
+   private int stamp_;
+   
+   /**
+    * Runs the watershed on the complete mask
+    * @param mask binary mask with foreground non-zero, modified in place
+    * @param width image width
+    * @param height image height
+    */
+   public void apply(byte[] mask, int width, int height) {
+      apply(mask, width, 0, 0, width, height);
+   }
+   
+   /**
+    * Runs the watershed on a rectangle of the mask.  Pixels outside the
+    * rectangle are neither read nor modified, and are not considered to be 
+    * background, just like pixels outside the image
+    * @param mask binary mask with foreground non-zero, modified in place
+    * @param width width of the complete mask
+    * @param x0 left of the rectangle
+    * @param y0 top of the rectangle
+    * @param w width of the rectangle
+    * @param h height of the rectangle
+    */
+   public void apply(byte[] mask, int width, int x0, int y0, int w, int h) {
+      if (w <= 0 || h <= 0) {
+         return;
+      }
+      allocate(w, h);
+      float maxDistance = distanceMap(mask, width, x0, y0, w, h);
+      int nrSeeds = findSeeds(w, h);
+      if (nrSeeds < 2) {
+         // nothing can touch
+         return;
+      }
+      flood(mask, width, x0, y0, w, h, nrSeeds, maxDistance);
+   }
+   
+   private void allocate(int w, int h) {
+      int size = w * h;
+      edm_ = BufferPool.floats(edm_, size);
+      labels_ = BufferPool.ints(labels_, size);
+      next_ = BufferPool.ints(next_, size);
+      stack_ = BufferPool.ints(stack_, size);
+      seeds_ = BufferPool.ints(seeds_, size);
+      int[] stamps = BufferPool.ints(floodStamp_, size);
+      if (stamps != floodStamp_) {
+         floodStamp_ = stamps;
+         stamp_ = 0;
+      }
+      int n = Math.max(w, h);
+      if (f_.length < n) {
+         f_ = new float[n];
+         v_ = new int[n];
+         z_ = new float[n + 1];
+      }
+   }
+   
+   /**
+    * Exact Euclidean distance of each foreground pixel to the nearest 
+    * background pixel.  First a distance along the columns, then the lower 
+    * envelope of parabolas along the rows
+    * @return largest distance
+    */
+   private float distanceMap(byte[] mask, int width, int x0, int y0, int w, 
+           int h) {
+      // distance along the columns, walking row by row for memory locality
+      for (int y = 0; y < h; y++) {
+         int in = (y0 + y) * width + x0;
+         int row = y * w;
+         for (int x = 0; x < w; x++) {
+            if (mask[in + x] == 0) {
+               edm_[row + x] = 0f;
+            } else {
+               float above = y > 0 ? edm_[row - w + x] : INF;
+               edm_[row + x] = above < INF ? above + 1f : INF;
+            }
+         }
+      }
+      for (int y = h - 2; y >= 0; y--) {
+         int row = y * w;
+         for (int x = 0; x < w; x++) {
+            float below = edm_[row + w + x] + 1f;
+            if (below < edm_[row + x]) {
+               edm_[row + x] = below;
+            }
+         }
+      }
+      // used where there is no background at all in reach
+      float far = w + h;
+      float max = 0f;
+      for (int y = 0; y < h; y++) {
+         int row = y * w;
+         for (int x = 0; x < w; x++) {
+            float g = edm_[row + x];
+            f_[x] = g >= INF ? INF : g * g;
+         }
+         if (envelope(w) < 0) {
+            Arrays.fill(edm_, row, row + w, far);
+            max = far;
+            continue;
+         }
+         int k = 0;
+         for (int x = 0; x < w; x++) {
+            while (z_[k + 1] < x) {
+               k++;
+            }
+            float dx = x - v_[k];
+            float d = (float) Math.sqrt(dx * dx + f_[v_[k]]);
+            if (d > far) {
+               d = far;
+            }
+            edm_[row + x] = d;
+            if (d > max) {
+               max = d;
+            }
+         }
+      }
+      return max;
+   }
+   
+   /**
+    * Lower envelope of the parabolas (x - q)^2 + f(q) for all finite f(q)
+    * Fills v_ with the parabolas and z_ with their boundaries
+    * @return index of the last parabola, or -1 if all f(q) are infinite
+    */
+   private int envelope(int n) {
+      int k = -1;
+      for (int q = 0; q < n; q++) {
+         if (f_[q] >= INF) {
+            continue;
+         }
+         if (k < 0) {
+            k = 0;
+            v_[0] = q;
+            z_[0] = -INF;
+            z_[1] = INF;
+            continue;
+         }
+         float s = intersection(v_[k], q);
+         while (s <= z_[k]) {
+            k--;
+            s = intersection(v_[k], q);
+         }
+         k++;
+         v_[k] = q;
+         z_[k] = s;
+         z_[k + 1] = INF;
+      }
+      return k;
+   }
+   
+   private float intersection(int p, int q) {
+      return ((f_[q] + (float) q * q) - (f_[p] + (float) p * p)) / 
+              (2f * (q - p));
+   }
+   
+   /**
+    * Finds maxima of the EDM that are higher than their surroundings by 
+    * more than TOLERANCE.  Candidates are handled from high to low; the 
+    * area within tolerance of a candidate is flooded, and the candidate is 
+    * rejected when this area reaches a higher pixel or an area flooded 
+    * for an earlier candidate.  Every pixel is therefore flooded only once
+    * @return number of seeds, stored in seeds_
+    */
+   private int findSeeds(int w, int h) {
+      int nrCandidates = 0;
+      for (int y = 0; y < h; y++) {
+         for (int x = 0; x < w; x++) {
+            int i = y * w + x;
+            float v = edm_[i];
+            if (v > 0f && isLocalMax(v, x, y, w, h)) {
+               if (candidates_ == null || nrCandidates == candidates_.length) {
+                  candidates_ = candidates_ == null ? new long[1024] :
+                          Arrays.copyOf(candidates_, 2 * nrCandidates);
+               }
+               // positive floats sort like their bit patterns
+               candidates_[nrCandidates++] = 
+                       ((long) Float.floatToIntBits(v) << 32) | i;
+            }
+         }
+      }
+      Arrays.sort(candidates_, 0, nrCandidates);
+      
+      if (stamp_ > Integer.MAX_VALUE - nrCandidates - 1) {
+         Arrays.fill(floodStamp_, 0);
+         stamp_ = 0;
+      }
+      // pixels with a stamp above base were flooded during this call
+      int base = stamp_;
+      int nrSeeds = 0;
+      for (int c = nrCandidates - 1; c >= 0; c--) {
+         int seed = (int) candidates_[c];
+         if (floodStamp_[seed] > base) {
+            continue;
+         }
+         int flood = ++stamp_;
+         float v = edm_[seed];
+         float level = v - TOLERANCE;
+         boolean isMax = true;
+         int sp = 0;
+         stack_[sp++] = seed;
+         floodStamp_[seed] = flood;
+         while (sp > 0) {
+            int p = stack_[--sp];
+            int py = p / w;
+            int px = p - py * w;
+            for (int ny = Math.max(py - 1, 0); ny <= Math.min(py + 1, h - 1); ny++) {
+               for (int nx = Math.max(px - 1, 0); nx <= Math.min(px + 1, w - 1); nx++) {
+                  int q = ny * w + nx;
+                  if (edm_[q] <= level || floodStamp_[q] == flood) {
+                     continue;
+                  }
+                  if (edm_[q] > v || floodStamp_[q] > base) {
+                     isMax = false;
+                  } else {
+                     floodStamp_[q] = flood;
+                     stack_[sp++] = q;
+                  }
+               }
+            }
+         }
+         if (isMax) {
+            seeds_[nrSeeds++] = seed;
+         }
+      }
+      return nrSeeds;
+   }
+   
+   private boolean isLocalMax(float v, int x, int y, int w, int h) {
+      for (int ny = Math.max(y - 1, 0); ny <= Math.min(y + 1, h - 1); ny++) {
+         for (int nx = Math.max(x - 1, 0); nx <= Math.min(x + 1, w - 1); nx++) {
+            if (edm_[ny * w + nx] > v) {
+               return false;
+            }
+         }
+      }
+      return true;
+   }
+   
+   /**
+    * Grows the seeds in order of decreasing distance.  A pixel reached by
+    * two different seeds becomes part of the separating line
+    */
+   private void flood(byte[] mask, int width, int x0, int y0, int w, int h, 
+           int nrSeeds, float maxDistance) {
+      int nrBuckets = bucket(maxDistance) + 1;
+      if (head_.length < nrBuckets) {
+         head_ = new int[nrBuckets];
+         tail_ = new int[nrBuckets];
+      }
+      Arrays.fill(head_, 0, nrBuckets, -1);
+      Arrays.fill(tail_, 0, nrBuckets, -1);
+      Arrays.fill(labels_, 0, w * h, UNLABELED);
+      
+      for (int s = 0; s < nrSeeds; s++) {
+         labels_[seeds_[s]] = s + 1;
+      }
+      int current = nrBuckets - 1;
+      for (int s = 0; s < nrSeeds; s++) {
+         pushNeighbors(seeds_[s], w, h, current);
+      }
+      
+      while (current >= 0) {
+         int p = head_[current];
+         if (p < 0) {
+            current--;
+            continue;
+         }
+         head_[current] = next_[p];
+         if (head_[current] < 0) {
+            tail_[current] = -1;
+         }
+         
+         int py = p / w;
+         int px = p - py * w;
+         int label = UNLABELED;
+         for (int ny = Math.max(py - 1, 0); ny <= Math.min(py + 1, h - 1); ny++) {
+            for (int nx = Math.max(px - 1, 0); nx <= Math.min(px + 1, w - 1); nx++) {
+               int l = labels_[ny * w + nx];
+               if (l > 0) {
+                  if (label == UNLABELED) {
+                     label = l;
+                  } else if (l != label) {
+                     label = LINE;
+                  }
+               }
+            }
+         }
+         if (label == LINE) {
+            labels_[p] = LINE;
+            mask[(y0 + py) * width + x0 + px] = 0;
+         } else {
+            labels_[p] = label;
+            pushNeighbors(p, w, h, current);
+         }
+      }
+   }
+   
+   /**
+    * Queues the foreground neighbors of p that were not queued before.  
+    * Neighbors higher than the current level are handled at the current 
+    * level, so that the queue never has to go back up
+    */
+   private void pushNeighbors(int p, int w, int h, int current) {
+      int py = p / w;
+      int px = p - py * w;
+      for (int ny = Math.max(py - 1, 0); ny <= Math.min(py + 1, h - 1); ny++) {
+         for (int nx = Math.max(px - 1, 0); nx <= Math.min(px + 1, w - 1); nx++) {
+            int q = ny * w + nx;
+            if (labels_[q] != UNLABELED || edm_[q] == 0f) {
+               continue;
+            }
+            labels_[q] = QUEUED;
+            int b = Math.min(bucket(edm_[q]), current);
+            next_[q] = -1;
+            if (tail_[b] < 0) {
+               head_[b] = q;
+            } else {
+               next_[tail_[b]] = q;
+            }
+            tail_[b] = q;
+         }
+      }
+   }
+   
+   private static int bucket(float distance) {
+      return (int) (distance * BUCKETS_PER_PIXEL);
+   }
+   
+}
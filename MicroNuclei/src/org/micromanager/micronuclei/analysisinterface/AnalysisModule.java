@@ -19,9 +19,19 @@
 
 package org.micromanager.micronuclei.analysisinterface;
 
+import ij.ImagePlus;
 import ij.gui.Roi;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import mmcorej.TaggedImage;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.micromanager.utils.MMScriptException;
 
@@ -30,23 +40,224 @@ import org.micromanager.utils.MMScriptException;
  * @author nico
  */
 public abstract class AnalysisModule  {
-   // Keys to be used in JSONObject to exchange parameters
+   // Keys to be used in the JSONObject handed to prepare
    // not every analysis module will know about all keys!
    public final static String SHOWMASKS = "ShowMasks";
+   // Keys of the counts kept by the deprecated analyze(TaggedImage, JSONObject)
    public final static String RESETCOUNT = "ResetCount";
    public final static String CELLCOUNT = "CellCount";
    public final static String OBJECTCOUNT = "ObjectCount";
    
    private List<AnalysisProperty> analysisProperties_;
+   // parameters of the last call to prepare, for modules that only 
+   // implement the deprecated analyze(TaggedImage, JSONObject)
+   private volatile JSONObject parms_;
+   private final ThreadLocal<Boolean> inLegacyAnalyze_ = 
+           new ThreadLocal<Boolean>();
+   // set by the acquisition thread, read by the analysis threads
+   private volatile ImagePlus background_;
+   private volatile ImagePlus flatField_;
+   private volatile PixelType pixelType_;
+   // workers for analyzeAsync and analyzeBatch, created when first needed
+   private ExecutorService executor_;
+   private int numberOfThreads_ = 1;
 
   
-   public abstract Roi[] analyze (TaggedImage img, JSONObject parms) throws MMScriptException;
+   /**
+    * Takes a snapshot of the analysis properties and the given parameters,
+    * to be used for all images analyzed until the next call.  Call once 
+    * before each run
+    * @param parms parameters of the run, see the keys above
+    */
+   public void prepare(JSONObject parms) {
+      parms_ = parms;
+   }
+   
+   /**
+    * Analyzes an image using the settings of the last call to prepare
+    * Implementations should keep no state between calls, everything the 
+    * caller needs is in the result.  A single prepared module can then be 
+    * used by several threads at once
+    * Modules have to override either this method or the deprecated 
+    * analyze(TaggedImage, JSONObject).  This implementation runs the 
+    * latter, which only reports the number of nuclei, not their micronuclei
+    * @param img image to be analyzed
+    * @return hits, counts and timing of this image
+    * @throws MMScriptException when the image can not be analyzed
+    */
+   public AnalysisResult analyze (TaggedImage img) throws MMScriptException {
+      long startTime = System.currentTimeMillis();
+      JSONObject parms = parms_;
+      Roi[] hits;
+      try {
+         // a copy with zero counts, so that the module reports this image
+         parms = parms == null ? new JSONObject() : 
+                 new JSONObject(parms.toString());
+         parms.put(CELLCOUNT, 0);
+         parms.put(OBJECTCOUNT, 0);
+         inLegacyAnalyze_.set(Boolean.TRUE);
+         hits = analyze(img, parms);
+      } catch (JSONException je) {
+         throw new MMScriptException(je);
+      } finally {
+         inLegacyAnalyze_.remove();
+      }
+      long analysisTime = System.currentTimeMillis() - startTime;
+      if (hits == null) {
+         return AnalysisResult.skipped(name() + " did not analyze the image",
+                 analysisTime);
+      }
+      return new AnalysisResult(hits, new int[parms.optInt(CELLCOUNT, 0)], 
+              analysisTime);
+   }
+   
+   /**
+    * Prepares the module with the given parameters and analyzes the image
+    * @param img image to be analyzed
+    * @param parms parameters, the CELLCOUNT and OBJECTCOUNT in it are 
+    *              raised by the numbers of nuclei and hits of this image
+    * @return hits, or null when the image was not analyzed
+    * @throws MMScriptException when the image can not be analyzed
+    * @deprecated call prepare once per run, then analyze(TaggedImage), and
+    *             add the results up in an AnalysisTotals
+    */
+   @Deprecated
+   public Roi[] analyze (TaggedImage img, JSONObject parms) 
+           throws MMScriptException {
+      if (Boolean.TRUE.equals(inLegacyAnalyze_.get())) {
+         throw new MMScriptException(name() + 
+                 " does not implement analyze(TaggedImage)");
+      }
+      prepare(parms);
+      AnalysisResult result = analyze(img);
+      try {
+         parms.put(CELLCOUNT, parms.optInt(CELLCOUNT, 0) + 
+                 result.getNucleiCount());
+         parms.put(OBJECTCOUNT, parms.optInt(OBJECTCOUNT, 0) + 
+                 result.getHitCount());
+      } catch (JSONException je) {
+         throw new MMScriptException(je);
+      }
+      return result.isSkipped() ? null : result.getHits();
+   }
+   
+   /**
+    * Modules keep no state between images, so there is nothing to reset
+    * @deprecated counts are kept by the caller, i.e. in an AnalysisTotals
+    */
+   @Deprecated
+   public void reset() {
+   }
+   
+   /**
+    * Analyzes an image on one of the workers of this module, so that the 
+    * caller can go on (i.e. move the stage) in the meantime
+    * @param img image to be analyzed
+    * @return future result, get throws an ExecutionException wrapping the
+    *         MMScriptException when the image could not be analyzed
+    */
+   public Future<AnalysisResult> analyzeAsync(final TaggedImage img) {
+      return getExecutor().submit(new Callable<AnalysisResult>() {
+         @Override
+         public AnalysisResult call() throws MMScriptException {
+            return analyze(img);
+         }
+      });
+   }
+   
+   /**
+    * Analyzes the images on the workers of this module, and waits for all 
+    * of them.  Workers keep their buffers from image to image
+    * @param imgs images to be analyzed
+    * @return results in the same order as the images
+    * @throws MMScriptException when one of the images could not be analyzed
+    *                           or the caller was interrupted
+    */
+   public List<AnalysisResult> analyzeBatch(List<TaggedImage> imgs) 
+           throws MMScriptException {
+      List<Future<AnalysisResult>> futures = 
+              new ArrayList<Future<AnalysisResult>>(imgs.size());
+      for (TaggedImage img : imgs) {
+         futures.add(analyzeAsync(img));
+      }
+      List<AnalysisResult> results = 
+              new ArrayList<AnalysisResult>(imgs.size());
+      try {
+         for (Future<AnalysisResult> future : futures) {
+            results.add(future.get());
+         }
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         cancel(futures);
+         throw new MMScriptException("Interrupted while analyzing");
+      } catch (ExecutionException ee) {
+         cancel(futures);
+         Throwable cause = ee.getCause();
+         if (cause instanceof MMScriptException) {
+            throw (MMScriptException) cause;
+         }
+         if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+         }
+         throw new MMScriptException(cause);
+      }
+      return results;
+   }
+   
+   private static void cancel(List<Future<AnalysisResult>> futures) {
+      for (Future<AnalysisResult> future : futures) {
+         future.cancel(true);
+      }
+   }
+   
+   /**
+    * Sets the number of images analyzeAsync and analyzeBatch work on at 
+    * the same time.  Each image is analyzed in parallel on its own as well,
+    * so a few workers are enough to keep all processors busy
+    * @param numberOfThreads number of workers, at least 1
+    */
+   public synchronized void setNumberOfThreads(int numberOfThreads) {
+      if (numberOfThreads < 1) {
+         throw new IllegalArgumentException("At least one thread is needed");
+      }
+      if (numberOfThreads != numberOfThreads_) {
+         // images already handed out are still analyzed by the old workers
+         shutdown();
+         numberOfThreads_ = numberOfThreads;
+      }
+   }
+   
+   public synchronized int getNumberOfThreads() {
+      return numberOfThreads_;
+   }
    
    /**
-    * Resets the module so that it can be re-used without side effects
-    * Can for instance be used to reset counters
+    * Stops the workers once they are done with the images handed to them.
+    * New workers are started when needed
     */
-   public abstract void reset();
+   public synchronized void shutdown() {
+      if (executor_ != null) {
+         executor_.shutdown();
+         executor_ = null;
+      }
+   }
+   
+   private synchronized ExecutorService getExecutor() {
+      if (executor_ == null) {
+         executor_ = Executors.newFixedThreadPool(numberOfThreads_, 
+                 new ThreadFactory() {
+            private final AtomicInteger counter_ = new AtomicInteger(0);
+            @Override
+            public Thread newThread(Runnable r) {
+               Thread t = new Thread(r, name() + " worker " + 
+                       counter_.incrementAndGet());
+               t.setDaemon(true);
+               return t;
+            }
+         });
+      }
+      return executor_;
+   }
    
    /**
     * UI name for the analysis module
@@ -67,5 +278,40 @@ public abstract class AnalysisModule  {
       return analysisProperties_;
    }
    
+   /**
+    * Background and flatfield for the images to be analyzed: 
+    * (image - background) / flatfield.  Images are handed to analyze 
+    * uncorrected, so that the module can correct them in its first pass over
+    * the pixels.  Modules that correct images can override this to prepare
+    * the correction once per run
+    * @param background background image, or null
+    * @param flatField background subtracted flatfield image, or null
+    */
+   public void setCorrectionImages(ImagePlus background, ImagePlus flatField) {
+      background_ = background;
+      flatField_ = flatField;
+   }
+   
+   public ImagePlus getBackground() {
+      return background_;
+   }
+   
+   public ImagePlus getFlatField() {
+      return flatField_;
+   }
+   
+   /**
+    * Pixel type of the images of the coming acquisition, selects the 
+    * kernels used to analyze them
+    * @param pixelType pixel type, or null to determine it for every image
+    */
+   public void setPixelType(PixelType pixelType) {
+      pixelType_ = pixelType;
+   }
+   
+   public PixelType getPixelType() {
+      return pixelType_;
+   }
+   
    
 }
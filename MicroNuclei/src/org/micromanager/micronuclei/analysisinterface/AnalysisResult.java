@@ -0,0 +1,123 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.micronuclei.analysisinterface;
+
+import ij.gui.Roi;
+
+/**
+ * Outcome of the analysis of a single image
+ * 
+ * Immutable, results carry everything the caller needs, so that modules do 
+ * not have to keep counts between images.  Add results up in an 
+ * AnalysisTotals.
+ * 
+ * @author nico
+ */
+public class AnalysisResult {
+   private static final Roi[] NOROIS = new Roi[0];
+   private static final int[] NOCOUNTS = new int[0];
+   
+   private final Roi[] hits_;
+   private final int[] microNucleiCounts_;
+   private final int microNucleiCount_;
+   private final long analysisTime_;
+   private final String skipReason_;
+   
+   /**
+    * @param hits objects to be zapped
+    * @param microNucleiCounts number of micronuclei of each nucleus found 
+    *                          in the image
+    * @param analysisTime time the analysis took in milliseconds
+    */
+   public AnalysisResult(Roi[] hits, int[] microNucleiCounts, 
+           long analysisTime) {
+      this(hits.clone(), microNucleiCounts.clone(), analysisTime, null);
+   }
+   
+   private AnalysisResult(Roi[] hits, int[] microNucleiCounts, 
+           long analysisTime, String skipReason) {
+      hits_ = hits;
+      microNucleiCounts_ = microNucleiCounts;
+      int sum = 0;
+      for (int count : microNucleiCounts) {
+         sum += count;
+      }
+      microNucleiCount_ = sum;
+      analysisTime_ = analysisTime;
+      skipReason_ = skipReason;
+   }
+   
+   /**
+    * @param reason why the image was not analyzed
+    * @param analysisTime time it took to decide, in milliseconds
+    * @return result of an image that was not analyzed
+    */
+   public static AnalysisResult skipped(String reason, long analysisTime) {
+      return new AnalysisResult(NOROIS, NOCOUNTS, analysisTime, reason);
+   }
+   
+   /**
+    * @return copy of the objects to be zapped, empty when there are none
+    */
+   public Roi[] getHits() {
+      return hits_.clone();
+   }
+   
+   public int getHitCount() {
+      return hits_.length;
+   }
+   
+   public int getNucleiCount() {
+      return microNucleiCounts_.length;
+   }
+   
+   /**
+    * @param nucleus index of the nucleus, 0 - getNucleiCount() - 1
+    * @return number of micronuclei assigned to the nucleus
+    */
+   public int getMicroNucleiCount(int nucleus) {
+      return microNucleiCounts_[nucleus];
+   }
+   
+   /**
+    * @return number of micronuclei assigned to any nucleus
+    */
+   public int getMicroNucleiCount() {
+      return microNucleiCount_;
+   }
+   
+   /**
+    * @return time the analysis took in milliseconds
+    */
+   public long getAnalysisTime() {
+      return analysisTime_;
+   }
+   
+   public boolean isSkipped() {
+      return skipReason_ != null;
+   }
+   
+   /**
+    * @return why the image was not analyzed, or null when it was
+    */
+   public String getSkipReason() {
+      return skipReason_;
+   }
+   
+}
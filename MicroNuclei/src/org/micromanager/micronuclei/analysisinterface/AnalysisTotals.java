@@ -0,0 +1,81 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.micronuclei.analysisinterface;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Running totals of analysis results, i.e. of a well
+ * 
+ * Lock-free, so that workers analyzing images of the same well at the same
+ * time can all add their results.
+ * 
+ * @author nico
+ */
+public class AnalysisTotals {
+   private final AtomicInteger images_ = new AtomicInteger();
+   private final AtomicInteger skipped_ = new AtomicInteger();
+   private final AtomicInteger nuclei_ = new AtomicInteger();
+   private final AtomicInteger microNuclei_ = new AtomicInteger();
+   private final AtomicInteger hits_ = new AtomicInteger();
+   private final AtomicLong analysisTime_ = new AtomicLong();
+   
+   /**
+    * @param result result of one image
+    */
+   public void add(AnalysisResult result) {
+      images_.incrementAndGet();
+      if (result.isSkipped()) {
+         skipped_.incrementAndGet();
+      }
+      nuclei_.addAndGet(result.getNucleiCount());
+      microNuclei_.addAndGet(result.getMicroNucleiCount());
+      hits_.addAndGet(result.getHitCount());
+      analysisTime_.addAndGet(result.getAnalysisTime());
+   }
+   
+   public int getImageCount() {
+      return images_.get();
+   }
+   
+   public int getSkippedCount() {
+      return skipped_.get();
+   }
+   
+   public int getNucleiCount() {
+      return nuclei_.get();
+   }
+   
+   public int getMicroNucleiCount() {
+      return microNuclei_.get();
+   }
+   
+   public int getHitCount() {
+      return hits_.get();
+   }
+   
+   /**
+    * @return summed analysis time of all images in milliseconds
+    */
+   public long getAnalysisTime() {
+      return analysisTime_.get();
+   }
+   
+}
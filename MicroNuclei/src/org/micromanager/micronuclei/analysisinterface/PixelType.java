@@ -0,0 +1,111 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+package org.micromanager.micronuclei.analysisinterface;
+
+/**
+ * Pixel types the analysis has kernels for
+ * 
+ * The type is chosen once per acquisition from the pixel size of the camera,
+ * and selects the loop that reads the camera pixels, so that the inner loops
+ * do not need to test the type of the array for every pixel.  8-bit images
+ * are not converted to 16-bit, but are sharpened with the 16-bit clamp, 
+ * as they were after the conversion.  RGB images are not supported.
+ * 
+ * @author nico
+ */
+public enum PixelType {
+   GRAY8 (255f),
+   GRAY16 (65535f),
+   GRAY32 (Float.MAX_VALUE);
+   
+   private final float maxValue_;
+   
+   PixelType(float maxValue) {
+      maxValue_ = maxValue;
+   }
+   
+   /**
+    * @return largest value a pixel of this type can hold
+    */
+   public float getMaxValue() {
+      return maxValue_;
+   }
+   
+   /**
+    * @return true for byte and short images, whose pixels are rounded and 
+    * clamped to 0 - getMaxValue() after each processing step
+    */
+   public boolean isInteger() {
+      return this != GRAY32;
+   }
+   
+   /**
+    * @param pixels pixel array
+    * @return true when the pixel array is of this type
+    */
+   public boolean accepts(Object pixels) {
+      switch (this) {
+         case GRAY8:
+            return pixels instanceof byte[];
+         case GRAY16:
+            return pixels instanceof short[];
+         default:
+            return pixels instanceof float[];
+      }
+   }
+   
+   /**
+    * @param pixels byte[], short[] or float[] pixel array
+    * @return type of the pixel array
+    * @throws IllegalArgumentException for other arrays
+    */
+   public static PixelType of(Object pixels) {
+      for (PixelType type : values()) {
+         if (type.accepts(pixels)) {
+            return type;
+         }
+      }
+      throw new IllegalArgumentException("Unsupported pixel type");
+   }
+   
+   /**
+    * @param bytesPerPixel bytes per pixel as reported by the camera
+    * @param nrComponents number of components per pixel, 1 for grayscale
+    * @return the type of the images the camera delivers
+    * @throws IllegalArgumentException for RGB cameras and unknown pixel sizes
+    */
+   public static PixelType fromCamera(long bytesPerPixel, long nrComponents) {
+      if (nrComponents != 1) {
+         throw new IllegalArgumentException(
+                 "RGB images are not supported, use a grayscale camera");
+      }
+      switch ((int) bytesPerPixel) {
+         case 1:
+            return GRAY8;
+         case 2:
+            return GRAY16;
+         case 4:
+            return GRAY32;
+         default:
+            throw new IllegalArgumentException("Unsupported pixel size: " + 
+                    bytesPerPixel + " bytes");
+      }
+   }
+   
+}
@@ -0,0 +1,158 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Sites switch the channel group as the site loop of the form does: the 
+ * imaging channels in order, followed by the zap and after-zap channels 
+ * when the site has hits
+ * 
+ * @author nico
+ */
+public class ChannelSchedulerTest {
+   private static final String[] TWO = {"DAPI", "FITC"};
+   private static final String ZAP = "Zap";
+   private static final String AFTERZAP = "Cy5";
+   
+   /**
+    * Records the configurations it sets instead of setting them
+    */
+   static class Recorder extends ChannelScheduler {
+      final List<String> applied_ = new ArrayList<String>();
+      
+      Recorder(String current) {
+         super(null, "Channel", current);
+      }
+      
+      @Override
+      void apply(String config) {
+         applied_.add(config);
+      }
+   }
+   
+   static void site(ChannelScheduler scheduler, String[] channels, 
+           boolean hits, String afterZap) throws Exception {
+      for (String channel : channels) {
+         scheduler.set(channel);
+      }
+      if (hits) {
+         scheduler.set(ZAP);
+         scheduler.set(afterZap);
+      }
+   }
+   
+   @Test
+   public void noHits() throws Exception {
+      Recorder scheduler = new Recorder("DAPI");
+      for (int i = 0; i < 3; i++) {
+         site(scheduler, TWO, false, AFTERZAP);
+      }
+      assertEquals(Arrays.asList("FITC", "DAPI", "FITC", "DAPI", "FITC"), 
+              scheduler.applied_);
+      assertEquals(6, scheduler.getRequested());
+      assertEquals(1, scheduler.getSaved());
+      assertEquals("FITC", scheduler.getCurrent());
+   }
+   
+   @Test
+   public void hits() throws Exception {
+      Recorder scheduler = new Recorder("FITC");
+      site(scheduler, TWO, true, AFTERZAP);
+      site(scheduler, TWO, true, AFTERZAP);
+      assertEquals(Arrays.asList("DAPI", "FITC", ZAP, AFTERZAP, 
+              "DAPI", "FITC", ZAP, AFTERZAP), scheduler.applied_);
+      assertEquals(0, scheduler.getSaved());
+      assertEquals(AFTERZAP, scheduler.getCurrent());
+   }
+   
+   @Test
+   public void hitThenNoHit() throws Exception {
+      Recorder scheduler = new Recorder("DAPI");
+      site(scheduler, TWO, true, AFTERZAP);
+      site(scheduler, TWO, false, AFTERZAP);
+      site(scheduler, TWO, false, AFTERZAP);
+      // the site after a hit starts from the after-zap channel
+      assertEquals(Arrays.asList("FITC", ZAP, AFTERZAP, "DAPI", "FITC", 
+              "DAPI", "FITC"), scheduler.applied_);
+      assertEquals("FITC", scheduler.getCurrent());
+   }
+   
+   @Test
+   public void afterZapIsAnImagingChannel() throws Exception {
+      Recorder scheduler = new Recorder(null);
+      site(scheduler, TWO, true, "DAPI");
+      site(scheduler, TWO, false, "DAPI");
+      // the after-zap image leaves the first channel set for the next site
+      assertEquals(Arrays.asList("DAPI", "FITC", ZAP, "DAPI", "FITC"), 
+              scheduler.applied_);
+      assertEquals(1, scheduler.getSaved());
+   }
+   
+   @Test
+   public void oneChannel() throws Exception {
+      String[] one = {"DAPI"};
+      Recorder scheduler = new Recorder("FITC");
+      site(scheduler, one, false, AFTERZAP);
+      site(scheduler, one, false, AFTERZAP);
+      site(scheduler, one, true, AFTERZAP);
+      site(scheduler, one, false, AFTERZAP);
+      site(scheduler, one, false, AFTERZAP);
+      assertEquals(Arrays.asList("DAPI", ZAP, AFTERZAP, "DAPI"), 
+              scheduler.applied_);
+      assertEquals(3, scheduler.getSaved());
+   }
+   
+   @Test
+   public void failedSwitchIsRetried() throws Exception {
+      Recorder scheduler = new Recorder("DAPI") {
+         @Override
+         void apply(String config) {
+            if (ZAP.equals(config) && applied_.isEmpty()) {
+               applied_.add("failed");
+               throw new IllegalStateException("wheel stuck");
+            }
+            super.apply(config);
+         }
+      };
+      try {
+         site(scheduler, new String[] {"DAPI"}, true, AFTERZAP);
+         fail("the switch should have failed");
+      } catch (IllegalStateException ise) {
+         assertNull(scheduler.getCurrent());
+      }
+      site(scheduler, new String[] {"DAPI"}, false, AFTERZAP);
+      assertEquals(Arrays.asList("failed", "DAPI"), scheduler.applied_);
+   }
+   
+   @Test
+   public void unknownAfterSequence() throws Exception {
+      Recorder scheduler = new Recorder("DAPI");
+      scheduler.setCurrent(null);
+      scheduler.set("DAPI");
+      assertEquals(Arrays.asList("DAPI"), scheduler.applied_);
+   }
+   
+}
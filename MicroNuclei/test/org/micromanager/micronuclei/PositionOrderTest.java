@@ -0,0 +1,100 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei;
+
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Serpentine ordering of sites that are not on a perfect grid
+ * 
+ * @author nico
+ */
+public class PositionOrderTest {
+   private static final int COLUMNS = 5;
+   private static final double PITCH = 1000.0;
+   
+   /**
+    * Checks that the rows are visited one after the other, top to bottom,
+    * in alternating directions
+    */
+   private static void assertSerpentine(double[] rowY, double jitter) {
+      Random random = new Random(7);
+      int n = rowY.length * COLUMNS;
+      double[] x = new double[n];
+      double[] y = new double[n];
+      int[] row = new int[n];
+      int[] column = new int[n];
+      // listed in random order
+      int[] listed = new int[n];
+      for (int i = 0; i < n; i++) {
+         listed[i] = i;
+      }
+      for (int i = n - 1; i > 0; i--) {
+         int j = random.nextInt(i + 1);
+         int tmp = listed[i];
+         listed[i] = listed[j];
+         listed[j] = tmp;
+      }
+      for (int r = 0; r < rowY.length; r++) {
+         for (int c = 0; c < COLUMNS; c++) {
+            int i = listed[r * COLUMNS + c];
+            row[i] = r;
+            column[i] = c;
+            x[i] = c * PITCH + (random.nextDouble() - 0.5) * 2.0 * jitter;
+            y[i] = rowY[r] + (random.nextDouble() - 0.5) * 2.0 * jitter;
+         }
+      }
+      int[] order = PositionOrder.serpentine(x, y);
+      for (int k = 0; k < n; k++) {
+         int r = k / COLUMNS;
+         int c = r % 2 == 0 ? k % COLUMNS : COLUMNS - 1 - k % COLUMNS;
+         assertEquals("row of site " + k, r, row[order[k]]);
+         assertEquals("column of site " + k, c, column[order[k]]);
+      }
+   }
+   
+   @Test
+   public void regularGrid() {
+      assertSerpentine(new double[] {0.0, 1000.0, 2000.0, 3000.0}, 0.0);
+   }
+   
+   @Test
+   public void jitteredGrid() {
+      assertSerpentine(new double[] {0.0, 1000.0, 2000.0, 3000.0}, 100.0);
+   }
+   
+   @Test
+   public void jitteredSingleRow() {
+      assertSerpentine(new double[] {0.0}, 50.0);
+   }
+   
+   @Test
+   public void unevenlySpacedRows() {
+      assertSerpentine(new double[] {0.0, 1000.0, 1300.0, 3000.0}, 0.0);
+   }
+   
+   @Test
+   public void jitteredUnevenlySpacedRows() {
+      assertSerpentine(new double[] {0.0, 1000.0, 1300.0, 3000.0}, 50.0);
+   }
+   
+}
@@ -0,0 +1,198 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.measure.Measurements;
+import ij.measure.ResultsTable;
+import ij.plugin.filter.ParticleAnalyzer;
+import ij.process.ByteProcessor;
+import ij.process.ImageProcessor;
+import java.awt.Rectangle;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The union-find labeler should find the objects "Analyze Particles..." 
+ * finds, in the same order and with the same measurements
+ * 
+ * @author nico
+ */
+public class ComponentLabelerTest {
+   
+   /**
+    * Runs "Analyze Particles..." on the mask and compares every object
+    * @return number of objects
+    */
+   private static int compare(byte[] mask, int width, int height, 
+           double minSize, double maxSize) {
+      ResultsTable rt = new ResultsTable();
+      ByteProcessor bp = new ByteProcessor(width, height, mask.clone(), null);
+      bp.setThreshold(255, 255, ImageProcessor.NO_LUT_UPDATE);
+      ParticleAnalyzer pa = new ParticleAnalyzer(0, Measurements.AREA | 
+              Measurements.CENTROID | Measurements.RECT, rt, minSize, maxSize);
+      pa.setHideOutputImage(true);
+      assertTrue(pa.analyze(new ImagePlus("mask", bp), bp));
+      
+      ComponentLabeler labeler = new ComponentLabeler();
+      int n = labeler.label(mask, null, width, height, 1.0, minSize, maxSize);
+      assertEquals(rt.getCounter(), n);
+      for (int i = 0; i < n; i++) {
+         String object = "object " + i;
+         assertEquals(object, rt.getValue("Area", i), labeler.getArea(i), 0.0);
+         assertEquals(object, rt.getValue("BX", i), labeler.getBoundsX(i), 0.0);
+         assertEquals(object, rt.getValue("BY", i), labeler.getBoundsY(i), 0.0);
+         assertEquals(object, rt.getValue("Width", i), 
+                 labeler.getBoundsWidth(i), 0.0);
+         assertEquals(object, rt.getValue("Height", i), 
+                 labeler.getBoundsHeight(i), 0.0);
+         assertEquals(object, rt.getValue("X", i), labeler.getCentroidX(i), 
+                 1.0e-6);
+         assertEquals(object, rt.getValue("Y", i), labeler.getCentroidY(i), 
+                 1.0e-6);
+         Roi roi = labeler.traceRoi(i);
+         assertEquals(object, new Rectangle(labeler.getBoundsX(i), 
+                 labeler.getBoundsY(i), labeler.getBoundsWidth(i), 
+                 labeler.getBoundsHeight(i)), roi.getBounds());
+      }
+      return n;
+   }
+   
+   private static byte[] draw(String... rows) {
+      byte[] mask = new byte[rows.length * rows[0].length()];
+      for (int y = 0; y < rows.length; y++) {
+         for (int x = 0; x < rows[y].length(); x++) {
+            if (rows[y].charAt(x) == '#') {
+               mask[y * rows[0].length() + x] = (byte) 255;
+            }
+         }
+      }
+      return mask;
+   }
+   
+   private static int compare(double minSize, double maxSize, 
+           String... rows) {
+      return compare(draw(rows), rows[0].length(), rows.length, minSize, maxSize);
+   }
+   
+   @Test
+   public void mergesLate() {
+      // arms that only meet further down, so that their labels merge late
+      assertEquals(2, compare(1, 1000,
+              "..........",
+              ".#.#.#..#.",
+              ".#.#.#..#.",
+              ".#.#.#..#.",
+              ".#.#.####.",
+              ".#.#......",
+              ".#.#####..",
+              ".#.....#..",
+              ".#######..",
+              ".........."));
+   }
+   
+   @Test
+   public void spiral() {
+      assertEquals(1, compare(1, 1000,
+              "...........",
+              ".#########.",
+              ".#.......#.",
+              ".#.#####.#.",
+              ".#.#...#.#.",
+              ".#.#.#.#.#.",
+              ".#.#.###.#.",
+              ".#.#.....#.",
+              ".#.#######.",
+              "..........."));
+   }
+   
+   @Test
+   public void diagonals() {
+      // 8-connected, through the NE and NW neighbors only
+      assertEquals(6, compare(1, 1000,
+              "#.....#.#",
+              ".#...#...",
+              "..#.#...#",
+              "...#...#.",
+              "......#..",
+              "#.#.....#"));
+   }
+   
+   @Test
+   public void objectsInHoles() {
+      assertEquals(3, compare(1, 1000,
+              "#########",
+              "#.......#",
+              "#.#####.#",
+              "#.#...#.#",
+              "#.#.#.#.#",
+              "#.#...#.#",
+              "#.#####.#",
+              "#.......#",
+              "#########"));
+   }
+   
+   @Test
+   public void sizeFilter() {
+      Random random = new Random(5);
+      int width = 200;
+      int height = 150;
+      byte[] mask = randomMask(random, width, height, 0.45);
+      int all = compare(mask, width, height, 1, 1.0e9);
+      assertTrue(compare(mask, width, height, 4, 20) < all);
+      compare(mask, width, height, 10, 10);
+      compare(mask, width, height, 50, 1.0e9);
+   }
+   
+   @Test
+   public void randomMasks() {
+      Random random = new Random(9);
+      // odd sizes, so that objects touch the right and bottom edges 
+      for (double density : new double[] {0.1, 0.3, 0.5, 0.6, 0.9}) {
+         int width = 97 + random.nextInt(80);
+         int height = 61 + random.nextInt(80);
+         compare(randomMask(random, width, height, density), width, height, 
+                 1, 1.0e9);
+      }
+   }
+   
+   @Test
+   public void segmentedCells() {
+      SegmentationEngine engine = new SegmentationEngine();
+      engine.setImage(new PixelView(SyntheticImages.cells(512, 512, 4), 512, 
+              512, 1.0), FlatFieldCorrection.NONE, null);
+      compare(engine.segmentMicroNuclei().clone(), 512, 512, 20, 800);
+      compare(engine.segmentNuclei(5.0).clone(), 512, 512, 80, 3200);
+   }
+   
+   private static byte[] randomMask(Random random, int width, int height, 
+           double density) {
+      byte[] mask = new byte[width * height];
+      for (int i = 0; i < mask.length; i++) {
+         if (random.nextDouble() < density) {
+            mask[i] = (byte) 255;
+         }
+      }
+      return mask;
+   }
+   
+}
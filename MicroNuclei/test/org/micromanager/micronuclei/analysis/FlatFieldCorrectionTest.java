@@ -0,0 +1,115 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ShortProcessor;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Flatfields are used as acquired, i.e. with values in the thousands
+ * 
+ * @author nico
+ */
+public class FlatFieldCorrectionTest {
+   private static final int SIZE = 128;
+   
+   /**
+    * @return raw 16-bit flatfield, bright in the center
+    */
+   private static short[] rawFlatField() {
+      short[] pixels = new short[SIZE * SIZE];
+      for (int y = 0; y < SIZE; y++) {
+         for (int x = 0; x < SIZE; x++) {
+            double r = Math.hypot(x - SIZE / 2, y - SIZE / 2) / SIZE;
+            pixels[y * SIZE + x] = (short) (4000 - 3000 * r);
+         }
+      }
+      return pixels;
+   }
+   
+   private static double mean(short[] pixels) {
+      double sum = 0.0;
+      for (short p : pixels) {
+         sum += p & 0xffff;
+      }
+      return sum / pixels.length;
+   }
+   
+   @Test
+   public void rawFlatFieldFlattensShading() {
+      short[] flat = rawFlatField();
+      double mean = mean(flat);
+      short[] image = new short[flat.length];
+      for (int i = 0; i < image.length; i++) {
+         image[i] = (short) Math.round(1000.0 * flat[i] / mean);
+      }
+      FlatFieldCorrection correction = new FlatFieldCorrection(null, 
+              new ImagePlus("flat", new ShortProcessor(SIZE, SIZE, flat, null)));
+      float[] out = new float[image.length];
+      correction.load(new PixelView(image, SIZE, SIZE, 1.0), out, null);
+      for (float v : out) {
+         assertEquals(1000.0, v, 2.0);
+      }
+   }
+   
+   @Test
+   public void rawFlatFieldKeepsGrayLevels() {
+      short[] flat = rawFlatField();
+      short[] image = SyntheticImages.cells(SIZE, SIZE, 4);
+      FlatFieldCorrection correction = new FlatFieldCorrection(null, 
+              new ImagePlus("flat", new ShortProcessor(SIZE, SIZE, flat, null)));
+      float[] out = new float[image.length];
+      FrameStatistics stats = new FrameStatistics();
+      correction.load(new PixelView(image, SIZE, SIZE, 1.0), out, stats);
+      Set<Float> levels = new HashSet<Float>();
+      for (float v : out) {
+         levels.add(v);
+      }
+      assertTrue("only " + levels.size() + " gray levels", 
+              levels.size() > 500);
+      assertEquals(mean(image), stats.getMean(), 0.2 * mean(image));
+   }
+   
+   @Test
+   public void scaleOfFlatFieldDoesNotMatter() {
+      short[] flat = rawFlatField();
+      double mean = mean(flat);
+      float[] normalized = new float[flat.length];
+      for (int i = 0; i < flat.length; i++) {
+         normalized[i] = (float) (flat[i] / mean);
+      }
+      short[] image = SyntheticImages.cells(SIZE, SIZE, 5);
+      float[] raw = new float[image.length];
+      float[] scaled = new float[image.length];
+      new FlatFieldCorrection(null, new ImagePlus("flat", 
+              new ShortProcessor(SIZE, SIZE, flat, null))).load(
+              new PixelView(image, SIZE, SIZE, 1.0), raw, null);
+      new FlatFieldCorrection(null, new ImagePlus("flat", 
+              new FloatProcessor(SIZE, SIZE, normalized, null))).load(
+              new PixelView(image, SIZE, SIZE, 1.0), scaled, null);
+      assertArrayEquals(scaled, raw, 1f);
+   }
+   
+}
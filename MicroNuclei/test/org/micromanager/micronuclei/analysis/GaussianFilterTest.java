@@ -0,0 +1,134 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.plugin.filter.GaussianBlur;
+import ij.process.FloatProcessor;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The recursive blur should stay close to ImageJ's "Gaussian Blur..." at 
+ * the sigma used for the nuclei, also near the edges of the image
+ * 
+ * @author nico
+ */
+public class GaussianFilterTest {
+   private static final int WIDTH = 512;
+   private static final int HEIGHT = 384;
+   private static final double SIGMA = 5.0;
+   // pixels closer than this to the edge depend on the boundary handling
+   private static final int BORDER = 15;
+   
+   private static float[] frame(long seed) {
+      short[] pixels = SyntheticImages.cells(WIDTH, HEIGHT, seed);
+      float[] result = new float[pixels.length];
+      for (int i = 0; i < pixels.length; i++) {
+         result[i] = pixels[i] & 0xffff;
+      }
+      return result;
+   }
+   
+   private static float[] imageJ(float[] pixels) {
+      FloatProcessor fp = new FloatProcessor(WIDTH, HEIGHT, pixels.clone(), 
+              null);
+      // accuracy used by "Gaussian Blur..." for 16-bit images
+      new GaussianBlur().blurGaussian(fp, SIGMA, SIGMA, 0.0002);
+      return (float[]) fp.getPixels();
+   }
+   
+   private static float[] ours(float[] pixels) {
+      float[] result = pixels.clone();
+      new GaussianFilter(SIGMA).blur(result, WIDTH, HEIGHT);
+      return result;
+   }
+   
+   @Test
+   public void closeToImageJ() {
+      for (long seed = 1; seed <= 3; seed++) {
+         float[] expected = imageJ(frame(seed));
+         float[] actual = ours(frame(seed));
+         float min = Float.MAX_VALUE;
+         float max = -Float.MAX_VALUE;
+         for (float v : expected) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+         }
+         double range = max - min;
+         double interior = 0.0;
+         double border = 0.0;
+         double sum = 0.0;
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               int i = y * WIDTH + x;
+               double error = Math.abs(actual[i] - expected[i]);
+               sum += error;
+               if (x < BORDER || y < BORDER || x >= WIDTH - BORDER || 
+                       y >= HEIGHT - BORDER) {
+                  border = Math.max(border, error);
+               } else {
+                  interior = Math.max(interior, error);
+               }
+            }
+         }
+         assertTrue("seed " + seed + ": interior error " + interior, 
+                 interior < 0.01 * range);
+         assertTrue("seed " + seed + ": edge error " + border, 
+                 border < 0.01 * range);
+         assertTrue("seed " + seed + ": mean error " + sum / expected.length, 
+                 sum / expected.length < 0.001 * range);
+      }
+   }
+   
+   @Test
+   public void sameNucleiMask() {
+      int[] histogram = new int[Threshold.NBINS];
+      BitMask expected = new BitMask();
+      BitMask actual = new BitMask();
+      for (long seed = 1; seed <= 3; seed++) {
+         Threshold.otsuDark(imageJ(frame(seed)), WIDTH, HEIGHT, histogram, 
+                 expected);
+         Threshold.otsuDark(ours(frame(seed)), WIDTH, HEIGHT, histogram, 
+                 actual);
+         int different = 0;
+         for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+               if (expected.get(x, y) != actual.get(x, y)) {
+                  different++;
+               }
+            }
+         }
+         assertTrue("seed " + seed + ": " + different + " pixels differ", 
+                 different < WIDTH * HEIGHT / 1000);
+      }
+   }
+   
+   @Test
+   public void constantImageUnchanged() {
+      float[] pixels = new float[WIDTH * HEIGHT];
+      Arrays.fill(pixels, 1000f);
+      new GaussianFilter(SIGMA).blur(pixels, WIDTH, HEIGHT);
+      for (float v : pixels) {
+         assertEquals(1000f, v, 0.01f);
+      }
+   }
+   
+}
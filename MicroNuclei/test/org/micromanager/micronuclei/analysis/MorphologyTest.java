@@ -0,0 +1,197 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.Prefs;
+import ij.process.ByteProcessor;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The bit packed morphology should give what ImageJ's "Dilate", "Erode" 
+ * and "Close-" give, also where objects cross the 64 pixel words and at 
+ * widths that are not a multiple of 64
+ * 
+ * @author nico
+ */
+public class MorphologyTest {
+   private static final int[] WIDTHS = {1, 2, 63, 64, 65, 100, 127, 128, 129, 
+      200};
+   private static final int[] HEIGHTS = {1, 2, 3, 37};
+   
+   private enum Operation { DILATE, ERODE, CLOSE }
+   
+   @Before
+   public void setUp() {
+      Prefs.blackBackground = true;
+      Prefs.padEdges = false;
+   }
+   
+   private static void pack(byte[] pixels, int width, int height, 
+           BitMask mask) {
+      mask.setSize(width, height);
+      long[] words = mask.getWords();
+      int wordsPerRow = mask.getWordsPerRow();
+      for (int i = 0; i < wordsPerRow * height; i++) {
+         words[i] = 0L;
+      }
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            if (pixels[y * width + x] != 0) {
+               words[y * wordsPerRow + (x >>> 6)] |= 1L << x;
+            }
+         }
+      }
+   }
+   
+   private static byte[] imageJ(byte[] pixels, int width, int height, 
+           Operation operation) {
+      ByteProcessor bp = new ByteProcessor(width, height, pixels.clone(), 
+              null);
+      if (operation != Operation.ERODE) {
+         bp.dilate(1, 0);
+      }
+      if (operation != Operation.DILATE) {
+         bp.erode(1, 0);
+      }
+      return (byte[]) bp.getPixels();
+   }
+   
+   private static byte[] packed(byte[] pixels, int width, int height, 
+           Operation operation, BitMask mask, BitMask tmp) {
+      pack(pixels, width, height, mask);
+      switch (operation) {
+         case DILATE:
+            Morphology.dilate(mask, tmp);
+            break;
+         case ERODE:
+            Morphology.erode(mask, tmp);
+            break;
+         default:
+            Morphology.close(mask, tmp);
+      }
+      // bits beyond the width stay clear
+      long beyond = ~mask.getLastWordMask();
+      int wordsPerRow = mask.getWordsPerRow();
+      for (int y = 0; y < height; y++) {
+         assertEquals(0L, mask.getWords()[y * wordsPerRow + wordsPerRow - 1] 
+                 & beyond);
+      }
+      byte[] result = new byte[width * height];
+      mask.toBytes(result);
+      return result;
+   }
+   
+   private static void compare(byte[] pixels, int width, int height, 
+           BitMask mask, BitMask tmp) {
+      for (Operation operation : Operation.values()) {
+         assertArrayEquals(operation + " of " + width + " x " + height, 
+                 imageJ(pixels, width, height, operation), 
+                 packed(pixels, width, height, operation, mask, tmp));
+      }
+   }
+   
+   @Test
+   public void randomMasks() {
+      Random random = new Random(13);
+      // one pair of masks for all sizes, as in the engine
+      BitMask mask = new BitMask();
+      BitMask tmp = new BitMask();
+      for (int width : WIDTHS) {
+         for (int height : HEIGHTS) {
+            for (double density : new double[] {0.2, 0.5, 0.8}) {
+               byte[] pixels = new byte[width * height];
+               for (int i = 0; i < pixels.length; i++) {
+                  if (random.nextDouble() < density) {
+                     pixels[i] = (byte) 255;
+                  }
+               }
+               compare(pixels, width, height, mask, tmp);
+            }
+         }
+      }
+   }
+   
+   @Test
+   public void acrossWordBoundaries() {
+      BitMask mask = new BitMask();
+      BitMask tmp = new BitMask();
+      int height = 5;
+      for (int width : new int[] {65, 129, 150}) {
+         for (int x : new int[] {0, 62, 63, 64, 65, 127, 128, width - 1}) {
+            if (x >= width) {
+               continue;
+            }
+            // a single pixel, and a bar with a gap at the pixel
+            byte[] dot = new byte[width * height];
+            dot[2 * width + x] = (byte) 255;
+            compare(dot, width, height, mask, tmp);
+            byte[] bar = new byte[width * height];
+            for (int y = 1; y < 4; y++) {
+               for (int i = 0; i < width; i++) {
+                  bar[y * width + i] = i == x ? 0 : (byte) 255;
+               }
+            }
+            compare(bar, width, height, mask, tmp);
+         }
+      }
+   }
+   
+   @Test
+   public void fullMask() {
+      BitMask mask = new BitMask();
+      BitMask tmp = new BitMask();
+      for (int width : WIDTHS) {
+         byte[] pixels = new byte[width * 9];
+         for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (byte) 255;
+         }
+         compare(pixels, width, 9, mask, tmp);
+      }
+   }
+   
+   @Test
+   public void thresholdPacksLikeBytes() {
+      Random random = new Random(17);
+      BitMask mask = new BitMask();
+      int[] histogram = new int[Threshold.NBINS];
+      for (int width : WIDTHS) {
+         int height = 23;
+         float[] pixels = new float[width * height];
+         for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextFloat() * 1000f;
+         }
+         float level = Threshold.otsuDark(pixels, width, height, histogram, 
+                 mask);
+         byte[] bytes = new byte[width * height];
+         mask.toBytes(bytes);
+         for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+               int i = y * width + x;
+               assertEquals(mask.get(x, y), bytes[i] != 0);
+               assertEquals(pixels[i] >= level, bytes[i] != 0);
+            }
+         }
+      }
+   }
+   
+}
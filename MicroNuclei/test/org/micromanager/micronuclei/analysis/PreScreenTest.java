@@ -0,0 +1,74 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.ImagePlus;
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * Images analyzed in tiles are only corrected while the tiles are loaded,
+ * the pre-screen should nevertheless see the corrected image
+ * 
+ * @author nico
+ */
+public class PreScreenTest {
+   private static final int SIZE = 256;
+   
+   @Test
+   public void focusOfCorrectedImage() {
+      short[] pixels = SyntheticImages.cells(SIZE, SIZE, 6);
+      short[] flat = new short[SIZE * SIZE];
+      for (int i = 0; i < flat.length; i++) {
+         flat[i] = (short) (1000 + 2 * (i % SIZE));
+      }
+      FlatFieldCorrection correction = new FlatFieldCorrection(null, 
+              new ImagePlus("flat", new ShortProcessor(SIZE, SIZE, flat, null)));
+      PixelView view = new PixelView(pixels, SIZE, SIZE, 1.0);
+      
+      // as for tiled images: statistics only, corrected while sampling
+      FrameStatistics stats = new FrameStatistics();
+      correction.load(view, null, stats);
+      PreScreen tiled = new PreScreen(Double.MAX_VALUE, 0.0, 0.0);
+      tiled.screen(stats, view, correction);
+      
+      // the corrected image itself
+      float[] corrected = new float[SIZE * SIZE];
+      FrameStatistics correctedStats = new FrameStatistics();
+      correction.load(view, corrected, correctedStats);
+      PreScreen loaded = new PreScreen(Double.MAX_VALUE, 0.0, 0.0);
+      loaded.screen(correctedStats, new PixelView(
+              Arrays.copyOf(corrected, corrected.length), SIZE, SIZE, 1.0), 
+              FlatFieldCorrection.NONE);
+      
+      assertEquals(loaded.getContrast(), tiled.getContrast(), 1.0e-9);
+      assertEquals(loaded.getFocus(), tiled.getFocus(), 1.0e-9);
+      
+      // and not the raw camera pixels
+      FrameStatistics rawStats = new FrameStatistics();
+      FlatFieldCorrection.NONE.load(view, null, rawStats);
+      PreScreen raw = new PreScreen(Double.MAX_VALUE, 0.0, 0.0);
+      raw.screen(rawStats, view, FlatFieldCorrection.NONE);
+      assertTrue(Math.abs(raw.getFocus() - tiled.getFocus()) > 1.0e-3);
+   }
+   
+}
@@ -0,0 +1,128 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.gui.Roi;
+import ij.process.ShortProcessor;
+import java.awt.Rectangle;
+import java.util.List;
+import org.junit.Test;
+import org.json.JSONObject;
+import org.micromanager.micronuclei.analysisinterface.AnalysisResult;
+import static org.junit.Assert.*;
+
+/**
+ * Buffers of the engine and labeler only grow, so a smaller image after a 
+ * larger one is analyzed with buffers that are longer than the image
+ * 
+ * @author nico
+ */
+public class SegmentationEngineTest {
+   private static final int SIZE = 512;
+   
+   @Test
+   public void cropAfterFullFrame() throws Exception {
+      short[] pixels = SyntheticImages.cells(SIZE, SIZE, 1);
+      PixelView frame = new PixelView(pixels, SIZE, SIZE, 1.0);
+      PixelView crop = frame.crop(new Rectangle(100, 50, 200, 150));
+      
+      SegmentationEngine pooled = new SegmentationEngine();
+      ComponentLabeler pooledLabeler = new ComponentLabeler();
+      pooled.setImage(frame, FlatFieldCorrection.NONE, null);
+      int n = pooledLabeler.label(pooled.segmentNuclei(5.0), null, SIZE, 
+              SIZE, 1.0, 80, 3200);
+      assertTrue(n > 0);
+      pooledLabeler.traceRoi(0);
+      
+      pooled.setImage(crop, FlatFieldCorrection.NONE, null);
+      SegmentationEngine fresh = new SegmentationEngine();
+      ComponentLabeler freshLabeler = new ComponentLabeler();
+      fresh.setImage(crop, FlatFieldCorrection.NONE, null);
+      
+      int w = crop.getWidth();
+      int h = crop.getHeight();
+      int nPooled = pooledLabeler.label(pooled.segmentMicroNuclei(), null, 
+              w, h, 1.0, 20, 800);
+      int nFresh = freshLabeler.label(fresh.segmentMicroNuclei(), null, 
+              w, h, 1.0, 20, 800);
+      assertEquals(nFresh, nPooled);
+      assertTrue(nPooled > 0);
+      for (int i = 0; i < nPooled; i++) {
+         Roi a = pooledLabeler.traceRoi(i);
+         Roi b = freshLabeler.traceRoi(i);
+         assertEquals(b.getBounds(), a.getBounds());
+      }
+   }
+   
+   @Test
+   public void eightBitSharpenedAs16Bit() {
+      short[] cells = SyntheticImages.cells(SIZE, SIZE, 1);
+      byte[] pixels = new byte[cells.length];
+      short[] converted = new short[cells.length];
+      for (int i = 0; i < cells.length; i++) {
+         // bright enough for the sharpened nuclei to exceed 255
+         int value = Math.min(255, (cells[i] & 0xffff) / 12);
+         pixels[i] = (byte) value;
+         converted[i] = (short) value;
+      }
+      // the baseline converted to 16-bit before running "Sharpen"
+      ShortProcessor baseline = new ShortProcessor(SIZE, SIZE, converted, 
+              null);
+      baseline.sharpen();
+      
+      SegmentationEngine engine = new SegmentationEngine();
+      engine.setImage(new PixelView(pixels, SIZE, SIZE, 1.0), 
+              FlatFieldCorrection.NONE, null);
+      engine.segmentMicroNuclei();
+      float[] sharpened = engine.getMicroNucleiImage();
+      float max = 0f;
+      for (int i = 0; i < cells.length; i++) {
+         assertEquals(baseline.get(i), sharpened[i], 0f);
+         max = Math.max(max, sharpened[i]);
+      }
+      assertTrue(max > 255f);
+   }
+   
+   @Test
+   public void recheckInSubregion() throws Exception {
+      MicroNucleiAnalysisModule module = new MicroNucleiAnalysisModule();
+      module.checkInSmallerImage_.set(Boolean.TRUE);
+      module.recheckInFullImage_.set(Boolean.FALSE);
+      module.tileSize_.set(0);
+      module.prepare(new JSONObject());
+      AnalysisResult result = module.analyze(SyntheticImages.tagged(
+              SyntheticImages.cells(SIZE, SIZE, 2), SIZE, SIZE));
+      assertTrue(result.getHitCount() > 0);
+   }
+   
+   @Test
+   public void smallerEdgeTiles() throws Exception {
+      int size = 1000;
+      short[] pixels = SyntheticImages.cells(size, size, 3);
+      PixelView image = new PixelView(pixels, size, size, 1.0);
+      TiledSegmentation tiles = new TiledSegmentation(256, 32);
+      TiledSegmentation.Result result = tiles.segment(image, 
+              FlatFieldCorrection.NONE, 1.0, SegmentationEngine.NUCLEI_SIGMA, 
+              20, 800, 80, 3200);
+      List<Particle> nuclei = result.getNuclei();
+      assertTrue(nuclei.size() > 0);
+   }
+   
+}
@@ -0,0 +1,233 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The grid index should find the same nucleus as the brute force search it
+ * replaced, wherever the points are with respect to the cells
+ * 
+ * @author nico
+ */
+public class SpatialIndexTest {
+   private static final double[] CELLSIZES = {2.0, 25.0, 100.0};
+   private static final double[] MAXDISTANCES = {1.0, 10.0, 25.0, 
+      Double.POSITIVE_INFINITY};
+   
+   /**
+    * The assignment of the baseline: the closest point, if it is closer 
+    * than maxDistance
+    * @return distance to the point found, or -1 when there is none
+    */
+   @SuppressWarnings("deprecation")
+   private static double bruteForce(double[] x, double[] y, int n, 
+           double qx, double qy, double maxDistance) {
+      Map<Point2D.Double, ArrayList<Point2D.Double>> points = 
+              new HashMap<Point2D.Double, ArrayList<Point2D.Double>>();
+      for (int i = 0; i < n; i++) {
+         points.put(new Point2D.Double(x[i], y[i]), 
+                 new ArrayList<Point2D.Double>());
+      }
+      Point2D.Double q = new Point2D.Double(qx, qy);
+      Point2D.Double closest = Distance.closest(q, points);
+      if (closest == null || !(maxDistance > Distance.distance(q, closest))) {
+         return -1.0;
+      }
+      return Distance.distance(q, closest);
+   }
+   
+   /**
+    * @return lowest index of the points at exactly this distance
+    */
+   private static int lowestAt(double[] x, double[] y, int n, double qx, 
+           double qy, double distance) {
+      for (int i = 0; i < n; i++) {
+         if (Distance.distance(new Point2D.Double(qx, qy), 
+                 new Point2D.Double(x[i], y[i])) == distance) {
+            return i;
+         }
+      }
+      return -1;
+   }
+   
+   private static void check(SpatialIndex index, double[] x, double[] y, 
+           int n, double qx, double qy, double maxDistance) {
+      double expected = bruteForce(x, y, n, qx, qy, maxDistance);
+      int found = index.nearest(qx, qy, maxDistance);
+      String where = "(" + qx + ", " + qy + ") within " + maxDistance;
+      if (expected < 0) {
+         assertEquals(where, -1, found);
+         return;
+      }
+      assertTrue(where, found >= 0);
+      assertEquals(where, expected, Distance.distance(
+              new Point2D.Double(qx, qy), 
+              new Point2D.Double(x[found], y[found])), 0.0);
+      assertEquals(where, lowestAt(x, y, n, qx, qy, expected), found);
+   }
+   
+   @Test
+   public void randomPoints() {
+      // one index for all, as in the pool of a thread
+      SpatialIndex index = new SpatialIndex();
+      Random random = new Random(3);
+      for (int round = 0; round < 60; round++) {
+         int n = random.nextInt(300);
+         // longer than needed, as the arrays of an ObjectTable are
+         double[] x = new double[n + 10];
+         double[] y = new double[n + 10];
+         for (int i = 0; i < n; i++) {
+            x[i] = random.nextDouble() * 500.0;
+            y[i] = random.nextDouble() * 300.0;
+         }
+         double cellSize = CELLSIZES[round % CELLSIZES.length];
+         index.build(x, y, n, cellSize);
+         assertEquals(n, index.size());
+         for (int q = 0; q < 100; q++) {
+            // some of the queries are outside the points
+            double qx = -50.0 + random.nextDouble() * 600.0;
+            double qy = -50.0 + random.nextDouble() * 400.0;
+            for (double maxDistance : MAXDISTANCES) {
+               check(index, x, y, n, qx, qy, maxDistance);
+            }
+         }
+      }
+   }
+   
+   @Test
+   public void pointsOnCellBorders() {
+      // a grid of points at the corners of the cells, so that queries 
+      // between them have several equally close points
+      double cellSize = 10.0;
+      int n = 0;
+      double[] x = new double[36];
+      double[] y = new double[36];
+      for (int r = 5; r >= 0; r--) {
+         for (int c = 5; c >= 0; c--) {
+            x[n] = c * cellSize;
+            y[n] = r * cellSize;
+            n++;
+         }
+      }
+      SpatialIndex index = new SpatialIndex();
+      index.build(x, y, n, cellSize);
+      for (double qx = -10.0; qx <= 60.0; qx += 2.5) {
+         for (double qy = -10.0; qy <= 60.0; qy += 2.5) {
+            for (double maxDistance : MAXDISTANCES) {
+               check(index, x, y, n, qx, qy, maxDistance);
+            }
+         }
+      }
+   }
+   
+   @Test
+   public void maxDistanceSmallerThanCell() {
+      Random random = new Random(7);
+      int n = 200;
+      double[] x = new double[n];
+      double[] y = new double[n];
+      for (int i = 0; i < n; i++) {
+         x[i] = random.nextDouble() * 1000.0;
+         y[i] = random.nextDouble() * 1000.0;
+      }
+      SpatialIndex index = new SpatialIndex();
+      index.build(x, y, n, 250.0);
+      for (int q = 0; q < 2000; q++) {
+         double qx = random.nextDouble() * 1000.0;
+         double qy = random.nextDouble() * 1000.0;
+         check(index, x, y, n, qx, qy, 3.0);
+         check(index, x, y, n, qx, qy, 40.0);
+      }
+   }
+   
+   @Test
+   public void ties() {
+      SpatialIndex index = new SpatialIndex();
+      // all three are 10 away from (10, 0), in different cells
+      double[] x = {20.0, 0.0, 10.0};
+      double[] y = {0.0, 0.0, 10.0};
+      index.build(x, y, 3, 5.0);
+      assertEquals(0, index.nearest(10.0, 0.0, Double.POSITIVE_INFINITY));
+      assertEquals(0, index.nearest(10.0, 0.0, 10.5));
+      // exactly at maxDistance is too far, as it was
+      assertEquals(-1, index.nearest(10.0, 0.0, 10.0));
+      // two of them 5 away from (5, 5)
+      assertEquals(1, index.nearest(5.0, 5.0, Double.POSITIVE_INFINITY));
+   }
+   
+   @Test
+   public void emptyIndex() {
+      SpatialIndex index = new SpatialIndex();
+      double[] x = {1.0, 2.0};
+      double[] y = {1.0, 2.0};
+      index.build(x, y, 0, 10.0);
+      assertEquals(0, index.size());
+      assertEquals(-1, index.nearest(1.0, 1.0, Double.POSITIVE_INFINITY));
+      assertEquals(0, index.within(1.0, 1.0, 100.0, new int[2]));
+      // and after it held points
+      index.build(x, y, 2, 10.0);
+      assertEquals(0, index.nearest(1.0, 1.0, 5.0));
+      index.build(x, y, 0, 10.0);
+      assertEquals(-1, index.nearest(1.0, 1.0, Double.POSITIVE_INFINITY));
+   }
+   
+   @Test
+   public void withinMatchesBruteForce() {
+      Random random = new Random(11);
+      int n = 500;
+      double[] x = new double[n];
+      double[] y = new double[n];
+      for (int i = 0; i < n; i++) {
+         x[i] = random.nextDouble() * 400.0;
+         y[i] = random.nextDouble() * 400.0;
+      }
+      SpatialIndex index = new SpatialIndex();
+      index.build(x, y, n, 25.0);
+      int[] result = new int[n];
+      for (int q = 0; q < 200; q++) {
+         double qx = -20.0 + random.nextDouble() * 440.0;
+         double qy = -20.0 + random.nextDouble() * 440.0;
+         double radius = random.nextDouble() * 60.0;
+         int expected = 0;
+         for (int i = 0; i < n; i++) {
+            double dx = x[i] - qx;
+            double dy = y[i] - qy;
+            if (dx * dx + dy * dy <= radius * radius) {
+               expected++;
+            }
+         }
+         int count = index.within(qx, qy, radius, result);
+         assertEquals(expected, count);
+         for (int k = 0; k < count; k++) {
+            double dx = x[result[k]] - qx;
+            double dy = y[result[k]] - qy;
+            assertTrue(dx * dx + dy * dy <= radius * radius);
+         }
+      }
+   }
+   
+}
@@ -0,0 +1,96 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import java.util.Random;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Synthetic 16-bit images with nuclei, each with a few micronuclei nearby
+ * 
+ * @author nico
+ */
+class SyntheticImages {
+   
+   /**
+    * @param width image width
+    * @param height image height
+    * @param seed seed for the random generator
+    * @return pixels of the image
+    */
+   static short[] cells(int width, int height, long seed) {
+      Random random = new Random(seed);
+      float[] f = new float[width * height];
+      for (int i = 0; i < f.length; i++) {
+         f[i] = 500f + (float) random.nextGaussian() * 30f;
+      }
+      int nrNuclei = width * height / 6000;
+      for (int n = 0; n < nrNuclei; n++) {
+         double cx = random.nextDouble() * width;
+         double cy = random.nextDouble() * height;
+         double radius = 10.0 + random.nextDouble() * 8.0;
+         disk(f, width, height, cx, cy, radius, 3000.0, 0.3);
+         int nrMicroNuclei = random.nextInt(6);
+         for (int m = 0; m < nrMicroNuclei; m++) {
+            double angle = random.nextDouble() * 2.0 * Math.PI;
+            double distance = 22.0 + random.nextDouble() * 6.0;
+            disk(f, width, height, cx + distance * Math.cos(angle), 
+                    cy + distance * Math.sin(angle), 
+                    3.0 + random.nextDouble() * 1.5, 2500.0, 0.0);
+         }
+      }
+      short[] pixels = new short[f.length];
+      for (int i = 0; i < f.length; i++) {
+         pixels[i] = (short) Math.max(0, Math.min(65535, Math.round(f[i])));
+      }
+      return pixels;
+   }
+   
+   /**
+    * @return image with the tags the analysis needs
+    */
+   static TaggedImage tagged(Object pixels, int width, int height) 
+           throws JSONException {
+      JSONObject tags = new JSONObject();
+      tags.put("Width", width);
+      tags.put("Height", height);
+      tags.put("PixelSizeUm", 1.0);
+      return new TaggedImage(pixels, tags);
+   }
+   
+   private static void disk(float[] f, int width, int height, double cx, 
+           double cy, double radius, double intensity, double falloff) {
+      int x0 = (int) Math.max(0, cx - radius - 1);
+      int x1 = (int) Math.min(width, cx + radius + 1);
+      int y0 = (int) Math.max(0, cy - radius - 1);
+      int y1 = (int) Math.min(height, cy + radius + 1);
+      for (int y = y0; y < y1; y++) {
+         for (int x = x0; x < x1; x++) {
+            double d = Math.hypot(x - cx, y - cy);
+            if (d < radius) {
+               f[y * width + x] += intensity * (1.0 - falloff * d / radius);
+            }
+         }
+      }
+   }
+   
+}
@@ -0,0 +1,198 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysis;
+
+import ij.Prefs;
+import ij.plugin.filter.EDM;
+import ij.process.ByteProcessor;
+import java.util.Random;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * The watershed should split touching objects like ImageJ's "Watershed" 
+ * does.  The seeds are found differently, so in crowded clusters the two 
+ * can differ by a line
+ * 
+ * @author nico
+ */
+public class WatershedTest {
+   private static final int WIDTH = 200;
+   private static final int HEIGHT = 120;
+   
+   @Before
+   public void setUp() {
+      Prefs.blackBackground = true;
+   }
+   
+   private static void disk(byte[] mask, int width, double cx, double cy, 
+           double rx, double ry) {
+      int height = mask.length / width;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
+            double dx = (x - cx) / rx;
+            double dy = (y - cy) / ry;
+            if (dx * dx + dy * dy < 1.0) {
+               mask[y * width + x] = (byte) 255;
+            }
+         }
+      }
+   }
+   
+   private static int count(byte[] mask, int width, int height) {
+      return new ComponentLabeler().label(mask, null, width, height, 1.0, 1, 
+              Double.MAX_VALUE);
+   }
+   
+   private static byte[] imageJ(byte[] mask, int width, int height) {
+      ByteProcessor bp = new ByteProcessor(width, height, mask.clone(), null);
+      new EDM().toWatershed(bp);
+      return (byte[]) bp.getPixels();
+   }
+   
+   private static byte[] ours(byte[] mask, int width, int height) {
+      byte[] result = mask.clone();
+      new Watershed().apply(result, width, height);
+      return result;
+   }
+   
+   @Test
+   public void singleObjectsAreNotSplit() {
+      for (double r = 3.0; r < 40.0; r += 2.5) {
+         byte[] mask = new byte[WIDTH * HEIGHT];
+         disk(mask, WIDTH, 100.3, 60.7, r, 0.6 * r + 2.0);
+         assertEquals(1, count(imageJ(mask, WIDTH, HEIGHT), WIDTH, HEIGHT));
+         byte[] result = ours(mask, WIDTH, HEIGHT);
+         assertEquals(1, count(result, WIDTH, HEIGHT));
+         assertArrayEquals(mask, result);
+      }
+   }
+   
+   @Test
+   public void touchingPairsAreSplit() {
+      for (double r = 6.0; r < 30.0; r += 3.0) {
+         byte[] mask = new byte[WIDTH * HEIGHT];
+         disk(mask, WIDTH, 100.0 - 0.8 * r, 60.0, r, r);
+         disk(mask, WIDTH, 100.0 + 0.8 * r, 60.0 + 0.3 * r, r, r);
+         assertEquals(1, count(mask, WIDTH, HEIGHT));
+         byte[] ij = imageJ(mask, WIDTH, HEIGHT);
+         byte[] result = ours(mask, WIDTH, HEIGHT);
+         assertEquals(2, count(ij, WIDTH, HEIGHT));
+         assertEquals(2, count(result, WIDTH, HEIGHT));
+         // only the line between the two is removed
+         int removed = 0;
+         for (int i = 0; i < mask.length; i++) {
+            assertFalse(mask[i] == 0 && result[i] != 0);
+            if (mask[i] != result[i]) {
+               removed++;
+            }
+         }
+         assertTrue(removed <= 2 * r);
+      }
+   }
+   
+   @Test
+   public void randomClustersMatchImageJ() {
+      Random random = new Random(1);
+      int trials = 300;
+      int differentCounts = 0;
+      long differentPixels = 0;
+      long foreground = 0;
+      for (int t = 0; t < trials; t++) {
+         byte[] mask = new byte[WIDTH * HEIGHT];
+         int nrDisks = 1 + random.nextInt(5);
+         for (int d = 0; d < nrDisks; d++) {
+            double r = 6.0 + random.nextDouble() * 14.0;
+            disk(mask, WIDTH, 30.0 + random.nextDouble() * 140.0, 
+                    30.0 + random.nextDouble() * 60.0, r, r);
+         }
+         byte[] ij = imageJ(mask, WIDTH, HEIGHT);
+         byte[] result = ours(mask, WIDTH, HEIGHT);
+         if (count(ij, WIDTH, HEIGHT) != count(result, WIDTH, HEIGHT)) {
+            differentCounts++;
+         }
+         for (int i = 0; i < mask.length; i++) {
+            if (mask[i] != 0) {
+               foreground++;
+            }
+            if ((ij[i] != 0) != (result[i] != 0)) {
+               differentPixels++;
+            }
+         }
+      }
+      assertTrue(differentCounts + " of " + trials + " differ", 
+              differentCounts <= trials / 20);
+      assertTrue(differentPixels + " of " + foreground + " pixels differ", 
+              differentPixels < foreground / 100);
+   }
+   
+   @Test
+   public void rectangleIsWatershedOnItsOwn() {
+      Random random = new Random(2);
+      byte[] mask = new byte[WIDTH * HEIGHT];
+      for (int d = 0; d < 12; d++) {
+         double r = 6.0 + random.nextDouble() * 10.0;
+         disk(mask, WIDTH, random.nextDouble() * WIDTH, 
+                 random.nextDouble() * HEIGHT, r, r);
+      }
+      int x0 = 37;
+      int y0 = 21;
+      int w = 101;
+      int h = 67;
+      byte[] crop = new byte[w * h];
+      for (int y = 0; y < h; y++) {
+         System.arraycopy(mask, (y0 + y) * WIDTH + x0, crop, y * w, w);
+      }
+      byte[] result = mask.clone();
+      new Watershed().apply(result, WIDTH, x0, y0, w, h);
+      byte[] croppedResult = ours(crop, w, h);
+      for (int y = 0; y < HEIGHT; y++) {
+         for (int x = 0; x < WIDTH; x++) {
+            int i = y * WIDTH + x;
+            if (x >= x0 && x < x0 + w && y >= y0 && y < y0 + h) {
+               assertEquals(croppedResult[(y - y0) * w + x - x0], result[i]);
+            } else {
+               assertEquals(mask[i], result[i]);
+            }
+         }
+      }
+   }
+   
+   @Test
+   public void buffersAreReused() {
+      // a pooled instance sees large and small masks in turn
+      Watershed pooled = new Watershed();
+      Random random = new Random(3);
+      int[][] sizes = {{WIDTH, HEIGHT}, {61, 45}, {WIDTH, 30}, {40, HEIGHT}};
+      for (int[] size : sizes) {
+         byte[] mask = new byte[size[0] * size[1]];
+         for (int d = 0; d < 6; d++) {
+            double r = 5.0 + random.nextDouble() * 8.0;
+            disk(mask, size[0], random.nextDouble() * size[0], 
+                    random.nextDouble() * size[1], r, r);
+         }
+         byte[] result = mask.clone();
+         pooled.apply(result, size[0], size[1]);
+         assertArrayEquals(ours(mask, size[0], size[1]), result);
+      }
+   }
+   
+}
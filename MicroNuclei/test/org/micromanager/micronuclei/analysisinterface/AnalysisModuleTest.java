@@ -0,0 +1,307 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysisinterface;
+
+import ij.gui.Roi;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import mmcorej.TaggedImage;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.micromanager.utils.MMScriptException;
+import static org.junit.Assert.*;
+
+/**
+ * Modules and callers written against the old, counting API should keep 
+ * working next to the stateless one, and the workers of a module should 
+ * return results in order, give up on a batch when one image fails and 
+ * come back after a shutdown
+ * 
+ * @author nico
+ */
+public class AnalysisModuleTest {
+   
+   /**
+    * Finds the number of nuclei and hits given in the tags of the image
+    */
+   static class TagModule extends AnalysisModule {
+      @Override
+      public AnalysisResult analyze(TaggedImage img) 
+              throws MMScriptException {
+         if (img.tags.optBoolean("Skip", false)) {
+            return AnalysisResult.skipped("told to", 0);
+         }
+         Roi[] hits = new Roi[img.tags.optInt("Hits", 0)];
+         for (int i = 0; i < hits.length; i++) {
+            hits[i] = new Roi(i, i, 1, 1);
+         }
+         return new AnalysisResult(hits, new int[img.tags.optInt("Nuclei", 0)],
+                 0);
+      }
+      
+      @Override
+      public String name() {
+         return "Tags";
+      }
+   }
+   
+   /**
+    * Module written against the old API, keeping its own counts
+    */
+   static class LegacyModule extends AnalysisModule {
+      @Override
+      public Roi[] analyze(TaggedImage img, JSONObject parms) 
+              throws MMScriptException {
+         if (img.tags.optBoolean("Skip", false)) {
+            return null;
+         }
+         try {
+            parms.put(CELLCOUNT, parms.optInt(CELLCOUNT, 0) + 
+                    img.tags.optInt("Nuclei", 0));
+         } catch (JSONException je) {
+            throw new MMScriptException(je);
+         }
+         return new Roi[img.tags.optInt("Hits", 0)];
+      }
+      
+      @Override
+      public String name() {
+         return "Legacy";
+      }
+   }
+   
+   static class EmptyModule extends AnalysisModule {
+      @Override
+      public String name() {
+         return "Empty";
+      }
+   }
+   
+   /**
+    * Waits as long as the tags of the image say, then reports the image 
+    * number as its number of nuclei, or fails when told to
+    */
+   static class SleepModule extends AnalysisModule {
+      final AtomicInteger started_ = new AtomicInteger(0);
+      final CountDownLatch interrupted_ = new CountDownLatch(1);
+      final Set<String> workers_ = new HashSet<String>();
+      
+      @Override
+      public AnalysisResult analyze(TaggedImage img) 
+              throws MMScriptException {
+         started_.incrementAndGet();
+         synchronized (workers_) {
+            workers_.add(Thread.currentThread().getName());
+         }
+         try {
+            Thread.sleep(img.tags.optLong("Sleep", 0));
+         } catch (InterruptedException ie) {
+            interrupted_.countDown();
+            throw new MMScriptException("Interrupted");
+         }
+         String fail = img.tags.optString("Fail", "");
+         if (fail.equals("script")) {
+            throw new MMScriptException("Image " + img.tags.optInt("Nuclei"));
+         }
+         if (fail.equals("runtime")) {
+            throw new IllegalStateException("Image " + 
+                    img.tags.optInt("Nuclei"));
+         }
+         return new AnalysisResult(new Roi[0], 
+                 new int[img.tags.optInt("Nuclei", 0)], 0);
+      }
+      
+      @Override
+      public String name() {
+         return "Sleep";
+      }
+   }
+   
+   static TaggedImage job(int number, long sleep, String fail) 
+           throws JSONException {
+      JSONObject tags = new JSONObject();
+      tags.put("Nuclei", number);
+      tags.put("Sleep", sleep);
+      tags.put("Fail", fail);
+      return new TaggedImage(new short[0], tags);
+   }
+   
+   static TaggedImage image(int nuclei, int hits, boolean skip) 
+           throws JSONException {
+      JSONObject tags = new JSONObject();
+      tags.put("Nuclei", nuclei);
+      tags.put("Hits", hits);
+      tags.put("Skip", skip);
+      return new TaggedImage(new short[0], tags);
+   }
+   
+   @Test
+   @SuppressWarnings("deprecation")
+   public void deprecatedAnalyzeAddsUpCounts() throws Exception {
+      AnalysisModule module = new TagModule();
+      JSONObject parms = new JSONObject();
+      module.reset();
+      assertEquals(2, module.analyze(image(5, 2, false), parms).length);
+      assertEquals(0, module.analyze(image(3, 0, false), parms).length);
+      assertNull(module.analyze(image(7, 1, true), parms));
+      assertEquals(8, parms.getInt(AnalysisModule.CELLCOUNT));
+      assertEquals(2, parms.getInt(AnalysisModule.OBJECTCOUNT));
+   }
+   
+   @Test
+   public void legacyModuleThroughStatelessApi() throws Exception {
+      AnalysisModule module = new LegacyModule();
+      JSONObject parms = new JSONObject();
+      parms.put(AnalysisModule.CELLCOUNT, 100);
+      module.prepare(parms);
+      AnalysisResult result = module.analyze(image(4, 3, false));
+      assertEquals(4, result.getNucleiCount());
+      assertEquals(3, result.getHitCount());
+      assertTrue(module.analyze(image(4, 3, true)).isSkipped());
+      // the parameters of the run are not changed
+      assertEquals(100, parms.getInt(AnalysisModule.CELLCOUNT));
+   }
+   
+   @Test
+   @SuppressWarnings("deprecation")
+   public void legacyModuleThroughDeprecatedApi() throws Exception {
+      AnalysisModule module = new LegacyModule();
+      JSONObject parms = new JSONObject();
+      assertEquals(3, module.analyze(image(4, 3, false), parms).length);
+      assertEquals(1, module.analyze(image(2, 1, false), parms).length);
+      assertEquals(6, parms.getInt(AnalysisModule.CELLCOUNT));
+   }
+   
+   @Test(expected = MMScriptException.class)
+   public void neitherAnalyzeImplemented() throws Exception {
+      AnalysisModule module = new EmptyModule();
+      module.prepare(new JSONObject());
+      module.analyze(image(1, 1, false));
+   }
+   
+   @Test
+   public void batchKeepsOrder() throws Exception {
+      SleepModule module = new SleepModule();
+      module.setNumberOfThreads(4);
+      List<TaggedImage> imgs = new ArrayList<TaggedImage>();
+      // the first images take longest, so they finish last
+      for (int i = 0; i < 8; i++) {
+         imgs.add(job(i, 20 * (8 - i), ""));
+      }
+      List<AnalysisResult> results = module.analyzeBatch(imgs);
+      assertEquals(imgs.size(), results.size());
+      for (int i = 0; i < results.size(); i++) {
+         assertEquals(i, results.get(i).getNucleiCount());
+      }
+      assertEquals(4, module.workers_.size());
+      module.shutdown();
+   }
+   
+   @Test
+   public void failureCancelsTheRest() throws Exception {
+      SleepModule module = new SleepModule();
+      module.setNumberOfThreads(2);
+      List<TaggedImage> imgs = new ArrayList<TaggedImage>();
+      imgs.add(job(0, 0, "script"));
+      for (int i = 1; i < 10; i++) {
+         imgs.add(job(i, 10000, ""));
+      }
+      long start = System.currentTimeMillis();
+      try {
+         module.analyzeBatch(imgs);
+         fail("The failing image should end the batch");
+      } catch (MMScriptException mse) {
+         assertTrue(mse.getMessage(), mse.getMessage().contains("Image 0"));
+      }
+      assertTrue(System.currentTimeMillis() - start < 5000);
+      // images that were being analyzed are interrupted ...
+      assertTrue(module.interrupted_.await(5, TimeUnit.SECONDS));
+      module.shutdown();
+      // ... and the others never start.  The free worker may have taken 
+      // one more image before the batch was cancelled
+      assertTrue(module.started_.get() + " images started", 
+              module.started_.get() <= 3);
+   }
+   
+   @Test(expected = IllegalStateException.class)
+   public void runtimeExceptionsPassThrough() throws Exception {
+      SleepModule module = new SleepModule();
+      List<TaggedImage> imgs = new ArrayList<TaggedImage>();
+      imgs.add(job(0, 0, ""));
+      imgs.add(job(1, 0, "runtime"));
+      try {
+         module.analyzeBatch(imgs);
+      } finally {
+         module.shutdown();
+      }
+   }
+   
+   @Test
+   public void workersComeBackAfterShutdown() throws Exception {
+      SleepModule module = new SleepModule();
+      assertEquals(1, module.getNumberOfThreads());
+      assertEquals(7, module.analyzeAsync(job(7, 0, "")).get()
+              .getNucleiCount());
+      module.shutdown();
+      module.shutdown();
+      
+      module.setNumberOfThreads(3);
+      assertEquals(3, module.getNumberOfThreads());
+      synchronized (module.workers_) {
+         module.workers_.clear();
+      }
+      List<TaggedImage> imgs = new ArrayList<TaggedImage>();
+      for (int i = 0; i < 6; i++) {
+         imgs.add(job(i, 50, ""));
+      }
+      List<AnalysisResult> results = module.analyzeBatch(imgs);
+      assertEquals(5, results.get(5).getNucleiCount());
+      assertEquals(3, module.workers_.size());
+      
+      module.shutdown();
+      assertEquals(2, module.analyzeAsync(job(2, 0, "")).get()
+              .getNucleiCount());
+      module.shutdown();
+   }
+   
+   @Test
+   public void handedOutImagesSurviveNewThreadCount() throws Exception {
+      SleepModule module = new SleepModule();
+      Future<AnalysisResult> future = module.analyzeAsync(job(4, 200, ""));
+      module.setNumberOfThreads(2);
+      assertEquals(4, future.get(5, TimeUnit.SECONDS).getNucleiCount());
+      assertEquals(5, module.analyzeAsync(job(5, 0, "")).get()
+              .getNucleiCount());
+      module.shutdown();
+   }
+   
+   @Test(expected = IllegalArgumentException.class)
+   public void atLeastOneThread() {
+      new SleepModule().setNumberOfThreads(0);
+   }
+   
+}
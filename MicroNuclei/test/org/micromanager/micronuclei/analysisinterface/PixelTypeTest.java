@@ -0,0 +1,47 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       MicroNuclei detection project
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2015
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.micronuclei.analysisinterface;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * @author nico
+ */
+public class PixelTypeTest {
+   
+   @Test
+   public void grayscaleCameras() {
+      assertEquals(PixelType.GRAY8, PixelType.fromCamera(1, 1));
+      assertEquals(PixelType.GRAY16, PixelType.fromCamera(2, 1));
+      assertEquals(PixelType.GRAY32, PixelType.fromCamera(4, 1));
+   }
+   
+   @Test(expected = IllegalArgumentException.class)
+   public void rgbCamera() {
+      PixelType.fromCamera(4, 4);
+   }
+   
+   @Test(expected = IllegalArgumentException.class)
+   public void unknownPixelSize() {
+      PixelType.fromCamera(8, 1);
+   }
+   
+}